@@ -0,0 +1,55 @@
+package scheduler.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import scheduler.Scheduler;
+import scheduler.Session;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a command costs before it reaches the store: splitting the line, and Scheduler.execute
+ * finding the handler, timing it and rejecting a line it does not know.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+
+    private Session session;
+    private String line;
+
+    @Setup
+    public void setup() {
+        Fixture.install();
+        session = Fixture.quietSession();
+        line = "reserve " + Fixture.dateOf(0) + " pfizer";
+    }
+
+    @Benchmark
+    public String[] tokenize() {
+        return line.split(" ");
+    }
+
+    @Benchmark
+    public boolean dispatchUnknownCommand() {
+        return Scheduler.execute(session, "no_such_command 2030-01-01");
+    }
+
+    // reserve without a login is turned away by its handler, so this is dispatch plus the first check
+    @Benchmark
+    public boolean dispatchToHandler() {
+        return Scheduler.execute(session, line);
+    }
+}
@@ -0,0 +1,75 @@
+package scheduler.benchmarks;
+
+import scheduler.Scheduler;
+import scheduler.Session;
+import scheduler.storage.InMemoryStorageEngine;
+import scheduler.storage.Storage;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.LocalDate;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The data every benchmark runs against, in the in-memory storage engine that stands in for the
+ * database: PATIENTS patients, each with a date of their own on which every one of CAREGIVERS
+ * caregivers is available, and more doses than a run can use up.
+ *
+ * Giving each benchmark thread its own patient and date means threads compete for the shared
+ * structures but a reservation never fails for lack of a caregiver.
+ */
+final class Fixture {
+
+    static final int PATIENTS = 256;
+    static final int CAREGIVERS = 4;
+    static final String PASSWORD = "correct-horse";
+    private static final LocalDate FIRST_DATE = LocalDate.of(2030, 1, 1);
+
+    private static boolean installed = false;
+    private static final AtomicInteger nextPatient = new AtomicInteger();
+
+    private Fixture() {
+    }
+
+    // sets up the engine and its data once per JVM
+    static synchronized void install() {
+        if (installed) {
+            return;
+        }
+        // before anything asks for the engine, so nothing tries to reach a real database
+        Storage.set(new InMemoryStorageEngine());
+        Session session = quietSession();
+        for (int i = 0; i < CAREGIVERS; i++) {
+            run(session, "create_caregiver caregiver" + i + " " + PASSWORD);
+            run(session, "login_caregiver caregiver" + i + " " + PASSWORD);
+            run(session, "upload_availability " + FIRST_DATE + " " + FIRST_DATE.plusDays(PATIENTS - 1) + " daily");
+            if (i == 0) {
+                run(session, "add_doses pfizer 100000000");
+            }
+            run(session, "logout");
+        }
+        for (int i = 0; i < PATIENTS; i++) {
+            run(session, "create_patient patient" + i + " " + PASSWORD);
+        }
+        installed = true;
+    }
+
+    // a patient no other thread has been given yet, logged in on the session
+    static int loginNextPatient(Session session) {
+        int patient = nextPatient.getAndIncrement() % PATIENTS;
+        run(session, "login_patient patient" + patient + " " + PASSWORD);
+        return patient;
+    }
+
+    static LocalDate dateOf(int patient) {
+        return FIRST_DATE.plusDays(patient);
+    }
+
+    static Session quietSession() {
+        return new Session(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    static void run(Session session, String line) {
+        Scheduler.execute(session, line);
+    }
+}
@@ -0,0 +1,77 @@
+package scheduler.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import scheduler.Scheduler;
+import scheduler.Session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * reserve, cancel and search_caregiver_schedule end to end, through Scheduler.execute, against the
+ * in-memory engine. Each thread is a different patient booking on a date of their own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReservationBenchmark {
+
+    private static final String BOOKED = "Appointment ID ";
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private Session session;
+    private String reserve;
+    private String search;
+
+    @Setup
+    public void setup() {
+        Fixture.install();
+        session = new Session(new PrintStream(out, true, StandardCharsets.UTF_8));
+        int patient = Fixture.loginNextPatient(session);
+        reserve = "reserve " + Fixture.dateOf(patient) + " pfizer";
+        search = "search_caregiver_schedule " + Fixture.dateOf(patient);
+    }
+
+    // books a caregiver and gives the slot back, so every invocation starts from the same state
+    @Benchmark
+    public int reserveAndCancel() {
+        out.reset();
+        Scheduler.execute(session, reserve);
+        int id = bookedId(out.toString(StandardCharsets.UTF_8));
+        Scheduler.execute(session, "cancel " + id);
+        return id;
+    }
+
+    @Benchmark
+    public boolean search() {
+        out.reset();
+        return Scheduler.execute(session, search);
+    }
+
+    private static int bookedId(String output) {
+        int start = output.indexOf(BOOKED);
+        if (start < 0) {
+            throw new IllegalStateException("Reservation failed: " + output);
+        }
+        start += BOOKED.length();
+        int end = start;
+        while (end < output.length() && Character.isDigit(output.charAt(end))) {
+            end++;
+        }
+        return Integer.parseInt(output.substring(start, end));
+    }
+}
@@ -0,0 +1,50 @@
+package scheduler.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import scheduler.util.Config;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Runs every benchmark once per thread count in BenchmarkThreads (default: 1 and one per
+ * processor) and writes each run's results as JMH JSON to
+ * BenchmarkResults/&lt;label&gt;-threads-&lt;n&gt;.json, so runs of two releases can be compared file
+ * by file.
+ *
+ * Usage: java -jar target/benchmarks.jar [&lt;label&gt; [&lt;benchmark regex&gt;]]
+ */
+public class RunBenchmarks {
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        String label = args.length > 0 ? args[0] : LocalDate.now().toString();
+        String include = args.length > 1 ? args[1] : RunBenchmarks.class.getPackageName() + "\\..*Benchmark";
+        Path results = Paths.get(Config.get("BenchmarkResults", "results"));
+        Files.createDirectories(results);
+
+        Set<Integer> threadCounts = new LinkedHashSet<>();
+        for (String threads : Config.get("BenchmarkThreads", "1," + Runtime.getRuntime().availableProcessors()).split(",")) {
+            threadCounts.add(Integer.parseInt(threads.trim()));
+        }
+        for (int threads : threadCounts) {
+            Path file = results.resolve(label + "-threads-" + threads + ".json");
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(file.toString())
+                    .build();
+            new Runner(options).run();
+            System.out.println("Wrote " + file);
+        }
+    }
+}
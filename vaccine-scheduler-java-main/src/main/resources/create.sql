@@ -31,4 +31,10 @@ CREATE TABLE Appointments (
     Vaccine_name varchar(255) REFERENCES Vaccines,
     Patient_name varchar(255) REFERENCES Patients,
     PRIMARY KEY (id)
-);
\ No newline at end of file
+);
+
+-- appointment ids are handed out in blocks from this sequence, see AppointmentIdAllocator
+CREATE SEQUENCE AppointmentIds AS int START WITH 1 INCREMENT BY 1;
+
+-- the application also keeps the schema up to date itself: SchemaManager applies these tables and
+-- any later migrations (indexes and so on) at startup and records them in SchemaVersion
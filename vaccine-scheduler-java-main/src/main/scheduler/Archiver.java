@@ -0,0 +1,102 @@
+package scheduler;
+
+import scheduler.storage.Storage;
+import scheduler.util.Config;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves appointments and availabilities older than ArchiveAfterDays out of the hot tables into
+ * their archive tables, so that the queries the scheduler runs all day only see current rows.
+ *
+ * A background thread does this every ArchiveIntervalMillis. Rows move ArchiveBatchSize at a time,
+ * each batch in its own short transaction, with a pause of ArchivePauseMillis between batches so
+ * reservations running at the same time never wait long on the archiver's locks.
+ */
+public class Archiver {
+
+    private static final Archiver INSTANCE = new Archiver(
+            Config.getInt("ArchiveAfterDays", 30),
+            Config.getInt("ArchiveBatchSize", 1000),
+            Config.getLong("ArchivePauseMillis", 50));
+
+    // the earliest date SQL Server's date type holds
+    private static final Date MIN_DATE = Date.valueOf("0001-01-01");
+
+    private final int afterDays;
+    private final int batchSize;
+    private final long pauseMillis;
+    private ScheduledExecutorService runner = null;
+
+    Archiver(int afterDays, int batchSize, long pauseMillis) {
+        this.afterDays = afterDays;
+        this.batchSize = batchSize;
+        this.pauseMillis = pauseMillis;
+    }
+
+    public static Archiver get() {
+        return INSTANCE;
+    }
+
+    // starts archiving in the background, the first run right away; does nothing if already started
+    public synchronized void start(long intervalMillis) {
+        if (runner != null) {
+            return;
+        }
+        runner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "archiver");
+            t.setDaemon(true);
+            return t;
+        });
+        runner.scheduleWithFixedDelay(this::runQuietly, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // the dates before this one are archived
+    public Date horizon() {
+        return Date.valueOf(LocalDate.now().minusDays(afterDays));
+    }
+
+    // archives everything dated before the given date; returns {appointments, availabilities} moved
+    public synchronized int[] archive(Date before) throws SQLException, InterruptedException {
+        int availabilities = 0;
+        int moved;
+        do {
+            moved = Storage.get().archiveAvailabilities(before, batchSize);
+            availabilities += moved;
+            pause(moved);
+        } while (moved == batchSize);
+        int appointments = 0;
+        do {
+            moved = Storage.get().archiveAppointments(before, batchSize);
+            appointments += moved;
+            pause(moved);
+        } while (moved == batchSize);
+        if (availabilities > 0) {
+            SearchCache.get().availabilityChanged(MIN_DATE, before);
+        }
+        return new int[]{appointments, availabilities};
+    }
+
+    private void pause(int moved) throws InterruptedException {
+        if (moved == batchSize && pauseMillis > 0) {
+            Thread.sleep(pauseMillis);
+        }
+    }
+
+    private void runQuietly() {
+        try {
+            archive(horizon());
+        } catch (SQLException e) {
+            // whatever was not moved is picked up by the next run
+            System.out.println("Error occurred when archiving, will retry");
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,44 +1,75 @@
 package scheduler;
 
-import scheduler.db.ConnectionManager;
+import scheduler.db.SchemaManager;
+import scheduler.db.SqlTrace;
+import scheduler.metrics.Metrics;
+import scheduler.model.Appointment;
 import scheduler.model.Caregiver;
 import scheduler.model.Patient;
 import scheduler.model.Vaccine;
+import scheduler.server.SchedulerServer;
+import scheduler.storage.InMemoryStorageEngine;
+import scheduler.storage.Reservation;
+import scheduler.storage.SqlErrors;
+import scheduler.storage.Storage;
+import scheduler.storage.StorageEngine;
+import scheduler.tools.AppointmentExporter;
+import scheduler.tools.CsvImporter;
+import scheduler.util.Config;
+import scheduler.util.HashingService;
 import scheduler.util.Util;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.sql.*;
+import java.io.PrintStream;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class Scheduler {
 
-    // objects to keep track of the currently logged-in user
-    // Note: it is always true that at most one of currentCaregiver and currentPatient is not null
-    //       since only one user can be logged-in at a time
-    private static Caregiver currentCaregiver = null;
-    private static Patient currentPatient = null;
-
     public static void main(String[] args) {
-        // printing greetings text
-        System.out.println();
-        System.out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
-        System.out.println("*** Please enter one of the following commands ***");
-        System.out.println("> create_patient <username> <password>");  //TODO: implement create_patient (Part 1)
-        System.out.println("> create_caregiver <username> <password>");
-        System.out.println("> login_patient <username> <password>");  // TODO: implement login_patient (Part 1)
-        System.out.println("> login_caregiver <username> <password>");
-        System.out.println("> search_caregiver_schedule <date>");  // TODO: implement search_caregiver_schedule (Part 2)
-        System.out.println("> reserve <date> <vaccine>");  // TODO: implement reserve (Part 2)
-        System.out.println("> upload_availability <date>");
-        System.out.println("> cancel <appointment_id>");  // TODO: implement cancel (extra credit)
-        System.out.println("> add_doses <vaccine> <number>");
-        System.out.println("> show_appointments");  // TODO: implement show_appointments (Part 2)
-        System.out.println("> logout");  // TODO: implement logout (Part 2)
-        System.out.println("> quit");
-        System.out.println();
+        // the storage engine comes from the Storage setting unless given as "--storage <jdbc|memory>"
+        Integer serverPort = null;
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--storage")) {
+                Storage.set(Storage.create(args[i + 1]));
+            } else if (args[i].equals("--server")) {
+                serverPort = Integer.parseInt(args[i + 1]);
+            }
+        }
+
+        if (Config.getBoolean("Archive", true)) {
+            Archiver.get().start(Config.getLong("ArchiveIntervalMillis", 3_600_000));
+        }
+
+        // "--server <port>" serves many clients over TCP instead of reading commands from stdin
+        if (serverPort != null) {
+            try {
+                new SchedulerServer(serverPort).run();
+            } catch (IOException e) {
+                System.out.println("Could not start the server on port " + serverPort);
+                error(e);
+            }
+            return;
+        }
+
+        printGreeting(System.out);
 
         // read input from user
+        Session session = new Session(System.out);
         BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
         while (true) {
             System.out.print("> ");
@@ -48,154 +79,184 @@ public class Scheduler {
             } catch (IOException e) {
                 System.out.println("Please try again!");
             }
-            // split the user input by spaces
-            String[] tokens = response.split(" ");
-            // check if input exists
-            if (tokens.length == 0) {
-                System.out.println("Please try again!");
-                continue;
+            // end of input behaves like quit
+            if (response == null) {
+                return;
             }
-            // determine which operation to perform
-            String operation = tokens[0];
-            if (operation.equals("create_patient")) {
-                createPatient(tokens);
-            } else if (operation.equals("create_caregiver")) {
-                createCaregiver(tokens);
-            } else if (operation.equals("login_patient")) {
-                loginPatient(tokens);
-            } else if (operation.equals("login_caregiver")) {
-                loginCaregiver(tokens);
-            } else if (operation.equals("search_caregiver_schedule")) {
-                searchCaregiverSchedule(tokens);
-            } else if (operation.equals("reserve")) {
-                reserve(tokens);
-            } else if (operation.equals("upload_availability")) {
-                uploadAvailability(tokens);
-            } else if (operation.equals("cancel")) {
-                cancel(tokens);
-            } else if (operation.equals("add_doses")) {
-                addDoses(tokens);
-            } else if (operation.equals("show_appointments")) {
-                showAppointments(tokens);
-            } else if (operation.equals("logout")) {
-                logout(tokens);
-            } else if (operation.equals("quit")) {
-                System.out.println("Bye!");
+            if (!execute(session, response)) {
                 return;
-            } else {
-                System.out.println("Invalid operation name!");
             }
         }
     }
 
-    private static void createPatient(String[] tokens) {
+    public static void printGreeting(PrintStream out) {
+        // printing greetings text
+        out.println();
+        out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
+        out.println("*** Please enter one of the following commands ***");
+        out.println("> create_patient <username> <password>");  //TODO: implement create_patient (Part 1)
+        out.println("> create_caregiver <username> <password>");
+        out.println("> login_patient <username> <password>");  // TODO: implement login_patient (Part 1)
+        out.println("> login_caregiver <username> <password>");
+        out.println("> search_caregiver_schedule <date> [<to_date>]");  // TODO: implement search_caregiver_schedule (Part 2)
+        out.println("> reserve <date> <vaccine>");  // TODO: implement reserve (Part 2)
+        out.println("> bulk_reserve <from> <to> <vaccine> <patient|@file> ...");
+        out.println("> upload_availability <date> | <from> <to> [daily|weekdays|weekends|MON,WED,...]");
+        out.println("> cancel <appointment_id> [<appointment_id> ...] | <date> [<to_date>]");  // TODO: implement cancel (extra credit)
+        out.println("> add_doses <vaccine> <number>");
+        out.println("> import <patients|caregivers|vaccines|availabilities|appointments> <csv_file>");
+        out.println("> export <from> <to> <csv|binary> <file>");
+        out.println("> archive [<before_date>]");
+        out.println("> show_appointments [all]");  // TODO: implement show_appointments (Part 2)
+        out.println("> explain");
+        out.println("> stats [sql]");
+        out.println("> logout");  // TODO: implement logout (Part 2)
+        out.println("> quit");
+        out.println();
+    }
+
+    // runs one command line for the given session; returns false once the session should end
+    public static boolean execute(Session session, String line) {
+        // split the user input by spaces
+        String[] tokens = line.split(" ");
+        // check if input exists
+        if (tokens.length == 0) {
+            session.println("Please try again!");
+            return true;
+        }
+        // every command is timed, and anything else typed is counted as "invalid"
+        String operation = tokens[0];
+        long start = Metrics.get().startCommand();
+        try {
+            return dispatch(session, operation, tokens);
+        } catch (RuntimeException e) {
+            Metrics.get().commandFailed();
+            throw e;
+        } finally {
+            Metrics.get().endCommand(COMMANDS.contains(operation) ? operation : "invalid", start);
+        }
+    }
+
+    private static final Set<String> COMMANDS = Set.of("create_patient", "create_caregiver", "login_patient",
+            "login_caregiver", "search_caregiver_schedule", "reserve", "bulk_reserve", "upload_availability",
+            "cancel", "import", "add_doses", "export", "archive", "show_appointments", "explain", "stats",
+            "logout", "quit");
+
+    private static boolean dispatch(Session session, String operation, String[] tokens) {
+        // determine which operation to perform
+        if (operation.equals("create_patient")) {
+            createPatient(session, tokens);
+        } else if (operation.equals("create_caregiver")) {
+            createCaregiver(session, tokens);
+        } else if (operation.equals("login_patient")) {
+            loginPatient(session, tokens);
+        } else if (operation.equals("login_caregiver")) {
+            loginCaregiver(session, tokens);
+        } else if (operation.equals("search_caregiver_schedule")) {
+            searchCaregiverSchedule(session, tokens);
+        } else if (operation.equals("reserve")) {
+            reserve(session, tokens);
+        } else if (operation.equals("bulk_reserve")) {
+            bulkReserve(session, tokens);
+        } else if (operation.equals("upload_availability")) {
+            uploadAvailability(session, tokens);
+        } else if (operation.equals("cancel")) {
+            cancel(session, tokens);
+        } else if (operation.equals("import")) {
+            importCsv(session, tokens);
+        } else if (operation.equals("add_doses")) {
+            addDoses(session, tokens);
+        } else if (operation.equals("export")) {
+            export(session, tokens);
+        } else if (operation.equals("archive")) {
+            archive(session, tokens);
+        } else if (operation.equals("show_appointments")) {
+            showAppointments(session, tokens);
+        } else if (operation.equals("explain")) {
+            explain(session, tokens);
+        } else if (operation.equals("stats")) {
+            stats(session, tokens);
+        } else if (operation.equals("logout")) {
+            logout(session, tokens);
+        } else if (operation.equals("quit")) {
+            session.println("Bye!");
+            return false;
+        } else {
+            session.println("Invalid operation name!");
+        }
+        return true;
+    }
+
+    private static void createPatient(Session session, String[] tokens) {
         // TODO: Part 1
         // create_patient <username> <password>
         // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Create patient failed");
+            session.println("Create patient failed");
             return;
         }
         String username = tokens[1];
         String password = tokens[2];
-        // check 2: check if the username has been taken already
-        if (usernameExistsPatient(username)) {
-            System.out.println("Username taken, try again");
-            return;
-        }
+        // check 2: there is no separate lookup; the insert fails with a duplicate key if the
+        //          username is taken, so signing up costs one round trip
         byte[] salt = Util.generateSalt();
-        byte[] hash = Util.generateHash(password, salt);
+        byte[] hash = HashingService.get().hash(password, salt);
         // create the patient
         try {
             Patient patient = new Patient.PatientBuilder(username, salt, hash).build();
             // save to patient information to our database
             patient.saveToDB();
-            System.out.println("Created user " + username);
+            session.println("Created user " + username);
         } catch (SQLException e) {
-            System.out.println("Create patient failed");
-            e.printStackTrace();
-        }
-    }
-
-    private static boolean usernameExistsPatient(String username) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String selectUsername = "SELECT * FROM Patients WHERE Username = ?";
-        try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
-            return resultSet.isBeforeFirst();
-        } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
-            e.printStackTrace();
-        } finally {
-            cm.closeConnection();
+            if (SqlErrors.isDuplicateKey(e)) {
+                session.println("Username taken, try again");
+                return;
+            }
+            session.println("Create patient failed");
+            error(e);
         }
-        return true;
     }
 
-    private static void createCaregiver(String[] tokens) {
+    private static void createCaregiver(Session session, String[] tokens) {
         // create_caregiver <username> <password>
         // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
+            session.println("Failed to create user.");
             return;
         }
         String username = tokens[1];
         String password = tokens[2];
-        // check 2: check if the username has been taken already
-        if (usernameExistsCaregiver(username)) {
-            System.out.println("Username taken, try again!");
-            return;
-        }
+        // check 2: there is no separate lookup; the insert fails with a duplicate key if the
+        //          username is taken, so signing up costs one round trip
         byte[] salt = Util.generateSalt();
-        byte[] hash = Util.generateHash(password, salt);
+        byte[] hash = HashingService.get().hash(password, salt);
         // create the caregiver
         try {
             Caregiver caregiver = new Caregiver.CaregiverBuilder(username, salt, hash).build(); 
             // save to caregiver information to our database
             caregiver.saveToDB();
-            System.out.println("Created user " + username);
+            session.println("Created user " + username);
         } catch (SQLException e) {
-            System.out.println("Failed to create user.");
-            e.printStackTrace();
-        }
-    }
-
-    private static boolean usernameExistsCaregiver(String username) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String selectUsername = "SELECT * FROM Caregivers WHERE Username = ?";
-        try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
-            return resultSet.isBeforeFirst();
-        } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
-            e.printStackTrace();
-        } finally {
-            cm.closeConnection();
+            if (SqlErrors.isDuplicateKey(e)) {
+                session.println("Username taken, try again!");
+                return;
+            }
+            session.println("Failed to create user.");
+            error(e);
         }
-        return true;
     }
 
-    private static void loginPatient(String[] tokens) {
+    private static void loginPatient(Session session, String[] tokens) {
         // TODO: Part 1
         // login_patient <username> <password>
         // check 1: if someone's already logged-in, they need to log out first
-        if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in, try again");
+        if (session.isLoggedIn()) {
+            session.println("User already logged in, try again");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Login patient failed");
+            session.println("Login patient failed");
             return;
         }
         String username = tokens[1];
@@ -205,28 +266,28 @@ public class Scheduler {
         try {
             patient = new Patient.PatientGetter(username, password).get();
         } catch (SQLException e) {
-            System.out.println("Login patient failed");
-            e.printStackTrace();
+            session.println("Login patient failed");
+            error(e);
         }
         // check if the login was successful
         if (patient == null) {
-            System.out.println("Login patient failed");
+            session.println("Login patient failed");
         } else {
-            System.out.println("Logged in as " + username);
-            currentPatient = patient;
+            session.println("Logged in as " + username);
+            session.login(patient);
         }
     }
 
-    private static void loginCaregiver(String[] tokens) {
+    private static void loginCaregiver(Session session, String[] tokens) {
         // login_caregiver <username> <password>
         // check 1: if someone's already logged-in, they need to log out first
-        if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
+        if (session.isLoggedIn()) {
+            session.println("User already logged in.");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Login failed.");
+            session.println("Login failed.");
             return;
         }
         String username = tokens[1];
@@ -236,83 +297,97 @@ public class Scheduler {
         try {
             caregiver = new Caregiver.CaregiverGetter(username, password).get();
         } catch (SQLException e) {
-            System.out.println("Login failed.");
-            e.printStackTrace();
+            session.println("Login failed.");
+            error(e);
         }
         // check if the login was successful
         if (caregiver == null) {
-            System.out.println("Login failed.");
+            session.println("Login failed.");
         } else {
-            System.out.println("Logged in as: " + username);
-            currentCaregiver = caregiver;
+            session.println("Logged in as: " + username);
+            session.login(caregiver);
         }
     }
 
-    private static void searchCaregiverSchedule(String[] tokens) {
+    private static void searchCaregiverSchedule(Session session, String[] tokens) {
         // TODO: Part 2                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                       
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
         // check if a user is already logged in
-       if(currentCaregiver == null && currentPatient == null) {
-           System.out.println("Please login first");
+       if(!session.isLoggedIn()) {
+           session.println("Please login first");
+           return;
+       }
+       if(tokens.length != 2 && tokens.length != 3) {
+           session.println("Please try again");
            return;
        }
-       if(tokens.length != 2) {
-           System.out.println("Please try again");
+       if (tokens.length == 3) {
+           searchCaregiverScheduleRange(session, tokens[1], tokens[2]);
            return;
        }
        String date = tokens[1];
        try {
            Date d = Date.valueOf(date);
 
-            String getCaregiversQuery = "SELECT Username FROM Availabilities WHERE Time = ? ORDER BY Username";
-            PreparedStatement caregiversStmt = con.prepareStatement(getCaregiversQuery);
-            caregiversStmt.setDate(1, d);
-            ResultSet caregiversRS = caregiversStmt.executeQuery();
+           // both parts are usually served from SearchCache without touching the store
+           session.println(SearchCache.get().caregivers(d));
+           String vaccines = SearchCache.get().vaccines();
+           if (!vaccines.isEmpty()) {
+               session.println(vaccines);
+           }
+       } catch (IllegalArgumentException e) {
+           session.println("Please try again");
+       } catch (SQLException e) {
+           session.println("Please try again");
+           error(e);
+       }
+    }
 
-            boolean caregiversFound = false;
-            while (caregiversRS.next()) {
-            caregiversFound = true;
-            System.out.println(caregiversRS.getString("Username"));
+    // search_caregiver_schedule <from> <to>: every available caregiver in the range, grouped under
+    // each date, then one vaccine list. The slots come from a single ordered range query and are
+    // printed as they are read, so nothing proportional to the range is held in memory.
+    private static void searchCaregiverScheduleRange(Session session, String fromText, String toText) {
+        try {
+            Date from = Date.valueOf(fromText);
+            Date to = Date.valueOf(toText);
+            if (from.after(to)) {
+                session.println("Please enter a valid date range!");
+                return;
             }
-            if (!caregiversFound) {
-                System.out.println("No caregivers available.");
+            Date[] current = new Date[1];
+            Storage.get().forEachAvailability(from, to, slot -> {
+                if (!slot.getTime().equals(current[0])) {
+                    current[0] = slot.getTime();
+                    session.println(slot.getTime() + ":");
+                }
+                session.println("  " + slot.getCaregiver());
+            });
+            if (current[0] == null) {
+                session.println("No caregivers available.");
             }
-    
-            // Retrieve vaccine details
-            String getVaccinesQuery = "SELECT Name, Doses FROM Vaccines";
-            PreparedStatement vaccinesStmt = con.prepareStatement(getVaccinesQuery);
-            ResultSet vaccinesRS = vaccinesStmt.executeQuery();
-    
-            while (vaccinesRS.next()) {
-                String vaccineName = vaccinesRS.getString("Name");
-                int dosesAvailable = vaccinesRS.getInt("Doses");
-                System.out.println(vaccineName + " " + dosesAvailable);
+            String vaccines = SearchCache.get().vaccines();
+            if (!vaccines.isEmpty()) {
+                session.println(vaccines);
             }
-       } catch (SQLException e) {
-           System.out.println("Please try again");
-           e.printStackTrace();
-       } finally {
-           cm.closeConnection();
-       }
+        } catch (IllegalArgumentException e) {
+            session.println("Please enter a valid date range!");
+        } catch (SQLException e) {
+            session.println("Please try again");
+            error(e);
+        }
     }
 
-    private static void reserve(String[] tokens) {
+    private static void reserve(Session session, String[] tokens) {
         // TODO: Part 2
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first");
+        if (!session.isLoggedIn()) {
+            session.println("Please login first");
             return;
         }
-        if (currentCaregiver != null) {
-            System.out.println("Please login as a patient");
+        if (session.getCaregiver() != null) {
+            session.println("Please login as a patient");
             return;
         }
         if (tokens.length != 3) {
-            System.out.println("Please try again");
+            session.println("Please try again");
             return;
         }
 
@@ -321,304 +396,605 @@ public class Scheduler {
 
         try {
             Date d = Date.valueOf(date);
-
-            // Check vaccine availability
-            String vaccineQuery = "SELECT Doses FROM Vaccines WHERE Name = ?";
-            PreparedStatement vaccineStmt = con.prepareStatement(vaccineQuery);
-            vaccineStmt.setString(1, vaccine);
-            ResultSet vaccineRS = vaccineStmt.executeQuery();
-
-            if (!vaccineRS.next() || vaccineRS.getInt("Doses") <= 0) {
-                System.out.println("Not enough available doses");
-                return;
-            }
-
-            // Find an available caregiver
-            String caregiverQuery = "SELECT Username FROM Availabilities WHERE Time = ? ORDER BY Username";
-            PreparedStatement caregiverStmt = con.prepareStatement(caregiverQuery);
-            caregiverStmt.setDate(1, d);
-            ResultSet caregiverRS = caregiverStmt.executeQuery();
-
-            if (!caregiverRS.next()) {
-                System.out.println("No caregiver is available");
-                return;
-            }
-
-            String caregiverUsername = caregiverRS.getString("Username");
-            int appointmentId = getAppointmentId();
-
-            try {
-                // Reserve the appointment
-                //get appointment ID and addinto insert query + 1
-                String insertAppointmentQuery = "INSERT INTO Appointments (Patient_name, Caregiver_name, Vaccine_name, Time, id) VALUES (?, ?, ?, ?, ?)";
-                PreparedStatement appointmentStmt = con.prepareStatement(insertAppointmentQuery, Statement.RETURN_GENERATED_KEYS);
-                appointmentStmt.setString(1, currentPatient.getUsername());
-                appointmentStmt.setString(2, caregiverUsername);
-                appointmentStmt.setString(3, vaccine);
-                appointmentStmt.setDate(4, d);
-                appointmentStmt.setInt(5, appointmentId);
-                appointmentStmt.executeUpdate();
-
-                // Reduce vaccine doses
-                String updateVaccineQuery = "UPDATE Vaccines SET Doses = Doses - 1 WHERE Name = ?";
-                PreparedStatement updateVaccineStmt = con.prepareStatement(updateVaccineQuery);
-                updateVaccineStmt.setString(1, vaccine);
-                updateVaccineStmt.executeUpdate();
-
-                // Remove caregiver availability for the date
-                String deleteAvailabilityQuery = "DELETE FROM Availabilities WHERE Username = ? AND Time = ?";
-                PreparedStatement deleteAvailabilityStmt = con.prepareStatement(deleteAvailabilityQuery);
-                deleteAvailabilityStmt.setString(1, caregiverUsername);
-                deleteAvailabilityStmt.setDate(2, d);
-                deleteAvailabilityStmt.executeUpdate();
-
-                // Commit transaction
-                con.commit();
-
-                // Output success message
-                System.out.println("Appointment ID " + appointmentId + ", Caregiver username " + caregiverUsername);
-
-            } catch (SQLException e) {
-                // Rollback in case of any failure
-                con.rollback();
-                System.out.println("Please try again");
-                e.printStackTrace();
-            } finally {
-                cm.closeConnection();
+            String patient = session.getPatient().getUsername();
+            Reservation reservation = Storage.get().reserve(d, vaccine, patient);
+            switch (reservation.getStatus()) {
+                case NO_DOSES:
+                    session.println("Not enough available doses" + joinWaitlist(session, d, vaccine, patient));
+                    return;
+                case NO_CAREGIVER:
+                    session.println("No caregiver is available" + joinWaitlist(session, d, vaccine, patient));
+                    return;
+                case RESERVED:
+                    Waitlist.get().leave(d, vaccine, patient);
+                    SearchCache.get().availabilityChanged(d);
+                    SearchCache.get().dosesChanged();
+                    Vaccine.evict(vaccine);
+                    Appointment appointment = reservation.getAppointment();
+                    session.println("Appointment ID " + appointment.getId() + ", Caregiver username "
+                            + appointment.getCaregiverName());
+                    return;
+                case UNKNOWN_PATIENT:
+                    // the account was removed after this session logged in
+                    session.println("Patient " + patient + " no longer exists, please login again");
+                    session.logout();
+                    return;
+                default:
+                    session.println("Please try again");
             }
+        } catch (IllegalArgumentException e) {
+            session.println("Please try again");
         } catch (SQLException e) {
-            System.out.println("Please try again");
-            e.printStackTrace();
+            session.println("Please try again");
+            error(e);
         }
     }
 
-    private static int getAppointmentId() {
-        String query = "SELECT MAX(id) FROM Appointments";
-        int appointmentId = 1;
-
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+    // puts the patient on the waitlist instead of leaving them to retry; returns the text to append
+    // to the failure message
+    private static String joinWaitlist(Session session, Date date, String vaccine, String patient)
+            throws SQLException {
+        if (!Config.getBoolean("Waitlist", true)) {
+            return "";
+        }
+        // nothing will ever be added for a date that has passed or a vaccine that does not exist
+        if (date.before(Date.valueOf(LocalDate.now())) || Storage.get().getDoses(vaccine) == null) {
+            return "";
+        }
+        int position = Waitlist.get().join(date, vaccine, patient, session);
+        if (position == 0) {
+            return ", and the waitlist is full";
+        }
+        return ", you are number " + position + " on the waitlist and will be booked automatically";
+    }
 
+    private static void bulkReserve(Session session, String[] tokens) {
+        // bulk_reserve <from> <to> <vaccine> <patient|@file> ...
+        // check 1: booking on behalf of patients is done by caregivers
+        if (session.getCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: at least one patient (or file of patients) after the dates and the vaccine
+        if (tokens.length < 5) {
+            session.println("Please try again!");
+            return;
+        }
         try {
-            PreparedStatement stmt = con.prepareStatement(query);
-            ResultSet rs = stmt.executeQuery();
-
-            if(rs.next()) {
-                if(!rs.wasNull()) {
-                    appointmentId = rs.getInt(1) + 1;
+            Date from = Date.valueOf(tokens[1]);
+            Date to = Date.valueOf(tokens[2]);
+            String vaccine = tokens[3];
+            List<String> patients = new ArrayList<>();
+            // how each patient is named in the results when it turns out not to exist: a file's
+            // lines are not echoed back, only where they came from
+            List<String> sources = new ArrayList<>();
+            for (int i = 4; i < tokens.length; i++) {
+                if (tokens[i].startsWith("@")) {
+                    // a file with one patient username per line, from the file directory
+                    Path file = resolveFile(tokens[i].substring(1));
+                    if (file == null) {
+                        session.println("Please use a file inside the file directory!");
+                        return;
+                    }
+                    List<String> lines = Files.readAllLines(file);
+                    for (int line = 0; line < lines.size(); line++) {
+                        if (!lines.get(line).trim().isEmpty()) {
+                            patients.add(lines.get(line).trim());
+                            sources.add(tokens[i] + " line " + (line + 1));
+                        }
+                    }
+                } else if (!tokens[i].isEmpty()) {
+                    patients.add(tokens[i]);
+                    sources.add(tokens[i]);
                 }
             }
 
+            List<Reservation> reservations = Storage.get().reserveAll(patients, from, to, vaccine);
+            int reserved = 0;
+            for (int i = 0; i < patients.size(); i++) {
+                Reservation reservation = reservations.get(i);
+                switch (reservation.getStatus()) {
+                    case RESERVED:
+                        Appointment appointment = reservation.getAppointment();
+                        session.println(patients.get(i) + ": Appointment ID " + appointment.getId() + ", Caregiver username "
+                                + appointment.getCaregiverName() + ", Date " + appointment.getTime());
+                        reserved++;
+                        SearchCache.get().availabilityChanged(appointment.getTime());
+                        break;
+                    case NO_DOSES:
+                        session.println(patients.get(i) + ": Not enough available doses");
+                        break;
+                    case NO_CAREGIVER:
+                        session.println(patients.get(i) + ": No caregiver is available");
+                        break;
+                    default:
+                        session.println(sources.get(i) + ": No such patient");
+                }
+            }
+            if (reserved > 0) {
+                SearchCache.get().dosesChanged();
+                Vaccine.evict(vaccine);
+            }
+            session.println("Reserved " + reserved + " of " + patients.size() + " patients");
+        } catch (IllegalArgumentException e) {
+            session.println("Please enter valid dates!");
+        } catch (IOException e) {
+            session.println("Could not read the patient list");
         } catch (SQLException e) {
-            System.out.println("Please try again");
-            e.printStackTrace();
-        } finally {
-            cm.closeConnection();
+            session.println("Please try again!");
+            error(e);
         }
-        return appointmentId;
     }
 
-    private static void uploadAvailability(String[] tokens) {
+    private static void uploadAvailability(Session session, String[] tokens) {
         // upload_availability <date>
+        //   or upload_availability <from> <to> [daily|weekdays|weekends|<day>,<day>,...]
         // check 1: check if the current logged-in user is a caregiver
-        if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+        if (session.getCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
             return;
         }
-        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
-        if (tokens.length != 2) {
-            System.out.println("Please try again!");
+        // check 2: a single date, or a range with an optional weekly pattern
+        if (tokens.length < 2 || tokens.length > 4) {
+            session.println("Please try again!");
+            return;
+        }
+        if (tokens.length > 2) {
+            uploadAvailabilityRange(session, tokens);
             return;
         }
         String date = tokens[1];
         try {
             Date d = Date.valueOf(date);
-            currentCaregiver.uploadAvailability(d);
-            System.out.println("Availability uploaded!");
+            session.getCaregiver().uploadAvailability(d);
+            session.println("Availability uploaded!");
+            SearchCache.get().availabilityChanged(d);
+            Waitlist.get().availabilityAdded(d);
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date!");
+            session.println("Please enter a valid date!");
         } catch (SQLException e) {
-            System.out.println("Error occurred when uploading availability");
-            e.printStackTrace();
+            if (SqlErrors.isSlotBooked(e)) {
+                session.println("You already have an appointment on that date!");
+                return;
+            }
+            session.println("Error occurred when uploading availability");
+            error(e);
         }
     }
 
-    private static void cancel(String[] tokens) {
-        // TODO: Extra credit
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+    private static void uploadAvailabilityRange(Session session, String[] tokens) {
+        Set<DayOfWeek> days = parseDays(tokens.length == 4 ? tokens[3] : "daily");
+        if (days == null) {
+            session.println("Please enter daily, weekdays, weekends or days such as MON,WED,FRI!");
+            return;
+        }
+        try {
+            Date from = Date.valueOf(tokens[1]);
+            Date to = Date.valueOf(tokens[2]);
+            if (from.after(to)) {
+                session.println("Please enter a valid date range!");
+                return;
+            }
+            int added = session.getCaregiver().uploadAvailability(from, to, days);
+            session.println("Availability uploaded for " + added + " new dates!");
+            SearchCache.get().availabilityChanged(from, to);
+            Waitlist.get().availabilityAdded(from, to);
+        } catch (IllegalArgumentException e) {
+            session.println("Please enter a valid date range!");
+        } catch (SQLException e) {
+            session.println("Error occurred when uploading availability");
+            error(e);
+        }
+    }
+
+    // returns null if the pattern is not recognized
+    private static Set<DayOfWeek> parseDays(String pattern) {
+        switch (pattern.toLowerCase()) {
+            case "daily":
+                return EnumSet.allOf(DayOfWeek.class);
+            case "weekdays":
+                return EnumSet.range(DayOfWeek.MONDAY, DayOfWeek.FRIDAY);
+            case "weekends":
+                return EnumSet.of(DayOfWeek.SATURDAY, DayOfWeek.SUNDAY);
+            default:
+                Set<DayOfWeek> days = EnumSet.noneOf(DayOfWeek.class);
+                for (String name : pattern.split(",")) {
+                    DayOfWeek day = null;
+                    for (DayOfWeek candidate : DayOfWeek.values()) {
+                        // MON, MONDAY, mon and monday all name Monday
+                        if (name.length() >= 3 && candidate.name().startsWith(name.toUpperCase())) {
+                            day = candidate;
+                        }
+                    }
+                    if (day == null) {
+                        return null;
+                    }
+                    days.add(day);
+                }
+                return days;
+        }
+    }
 
+    private static void cancel(Session session, String[] tokens) {
+        // TODO: Extra credit
+        // cancel <id> [<id> ...], or for caregivers cancel <date> [<to_date>] for all of their
+        // appointments on those dates
         // check if a user is already logged in
-        if(currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first");
+        if(!session.isLoggedIn()) {
+            session.println("Please login first");
             return;
         }
-        if(tokens.length != 2) {
-            System.out.println("Please try again");
+        if(tokens.length < 2) {
+            session.println("Please try again");
             return;
         }
-        int appointmentId = Integer.parseInt(tokens[1]);
+        String patient = session.getPatient() != null ? session.getPatient().getUsername() : null;
+        String caregiver = session.getCaregiver() != null ? session.getCaregiver().getUsername() : null;
 
         try {
-            String query = "SELECT Time, Caregiver_name, Patient_name, Vaccine_name FROM Appointments WHERE id = ?";
-            PreparedStatement stmt = con.prepareStatement(query);
-            stmt.setInt(1, appointmentId);
-            ResultSet rs = stmt.executeQuery();
-
-            if (!rs.next()) {
-                System.out.println("Appointment ID does not exist");
-                return;
+            StorageEngine storage = Storage.get();
+            List<Appointment> cancelled;
+            List<String> notCancelled = new ArrayList<>();
+            if (tokens[1].contains("-")) {
+                if (caregiver == null || tokens.length > 3) {
+                    session.println("Please try again");
+                    return;
+                }
+                Date from = Date.valueOf(tokens[1]);
+                Date to = tokens.length == 3 ? Date.valueOf(tokens[2]) : from;
+                // the appointment rows, their slots and their doses change in one transaction
+                cancelled = storage.cancelCaregiverAppointments(caregiver, from, to, true);
+                if (cancelled.isEmpty()) {
+                    session.println("No appointments to cancel");
+                }
+            } else {
+                List<Integer> ids = new ArrayList<>();
+                for (int i = 1; i < tokens.length; i++) {
+                    ids.add(Integer.parseInt(tokens[i]));
+                }
+                cancelled = storage.cancelAppointments(ids, patient, caregiver, true);
+                // say why each id that was left alone was not cancelled
+                Set<Integer> found = new HashSet<>();
+                for (Appointment appointment : cancelled) {
+                    found.add(appointment.getId());
+                }
+                for (Integer id : ids) {
+                    if (found.contains(id)) {
+                        continue;
+                    }
+                    String which = ids.size() == 1 ? "" : " " + id;
+                    if (storage.getAppointment(id) == null) {
+                        notCancelled.add("Appointment ID" + which + " does not exist");
+                    } else {
+                        notCancelled.add("You are not authorized to cancel " + (ids.size() == 1 ? "this appointment" : "appointment " + id));
+                    }
+                }
             }
 
-            Date appointmentTime = rs.getDate("Time");
-            String caregiverName = rs.getString("Caregiver_name");
-            String patientName = rs.getString("Patient_name");
-            String vaccineName = rs.getString("Vaccine_name");
-
-            if (currentCaregiver != null && !currentCaregiver.getUsername().equals(caregiverName)) {
-                System.out.println("You are not authorized to cancel this appointment");
-                return;
+            Set<Date> dates = new HashSet<>();
+            Set<String> vaccines = new HashSet<>();
+            for (Appointment appointment : cancelled) {
+                session.println("Appointment " + appointment.getId() + " has been successfully canceled");
+                dates.add(appointment.getTime());
+                vaccines.add(appointment.getVaccineName());
             }
-            if (currentPatient != null && !currentPatient.getUsername().equals(patientName)) {
-                System.out.println("You are not authorized to cancel this appointment");
-                return;
+            for (String message : notCancelled) {
+                session.println(message);
+            }
+            if (!cancelled.isEmpty()) {
+                SearchCache.get().dosesChanged();
             }
+            for (Date date : dates) {
+                SearchCache.get().availabilityChanged(date);
+                Waitlist.get().availabilityAdded(date);
+            }
+            for (String vaccine : vaccines) {
+                Vaccine.evict(vaccine);
+                Waitlist.get().dosesAdded(vaccine);
+            }
+        } catch (IllegalArgumentException e) {
+            // also covers ids that are not numbers
+            session.println("Please try again");
+        } catch (SQLException e) {
+            session.println("Please try again");
+            error(e);
+        }
+    }
 
-            //delete the appointment
-            String deleteAppointmentQuery = "DELETE FROM Appointments WHERE id = ?";
-            PreparedStatement deleteStmt = con.prepareStatement(deleteAppointmentQuery);
-            deleteStmt.setInt(1, appointmentId);
-            deleteStmt.executeUpdate();
-
-            //restore caregiver availability
-            String restoreAvailabilityQuery = "INSERT INTO Availabilities (Time, Username) VALUES (?, ?)";
-            PreparedStatement restoreStmt = con.prepareStatement(restoreAvailabilityQuery);
-            restoreStmt.setDate(1, appointmentTime);
-            restoreStmt.setString(2, caregiverName);
-            restoreStmt.executeUpdate();
-
-            //add back vaccine dose
-            String incrementVaccineQuery = "UPDATE Vaccines SET Doses = Doses + 1 WHERE Name = ?";
-            PreparedStatement incrementStmt = con.prepareStatement(incrementVaccineQuery);
-            incrementStmt.setString(1, vaccineName);
-            incrementStmt.executeUpdate();
-
-            System.out.println("Appointment " + appointmentId + " has been successfully canceled");
+    private static void importCsv(Session session, String[] tokens) {
+        // import <table> <file>
+        // check 1: loading data in bulk is done by caregivers
+        if (session.getCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
+        if (tokens.length != 3) {
+            session.println("Please try again!");
+            return;
+        }
+        // check 3: the server reads the file, so it has to be inside the file directory
+        Path file = resolveFile(tokens[2]);
+        if (file == null) {
+            session.println("Please use a file inside the file directory!");
+            return;
+        }
+        CsvImporter importer = new CsvImporter(Storage.get(), session.getOut());
+        try {
+            importer.importFile(tokens[1], file);
+            SearchCache.get().clear();
+            Waitlist.get().retryAll();
+        } catch (IllegalArgumentException e) {
+            session.println(e.getMessage());
+        } catch (IOException e) {
+            session.println("Could not read " + tokens[2]);
         } catch (SQLException e) {
-            System.out.println("Please try again");
-            e.printStackTrace();
+            session.println("Error occurred when importing");
+            error(e);
         } finally {
-            cm.closeConnection();
+            importer.shutdown();
         }
     }
 
-    private static void addDoses(String[] tokens) {
+    private static void addDoses(Session session, String[] tokens) {
         // add_doses <vaccine> <number>
         // check 1: check if the current logged-in user is a caregiver
-        if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+        if (session.getCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Please try again!");
+            session.println("Please try again!");
             return;
         }
         String vaccineName = tokens[1];
-        int doses = Integer.parseInt(tokens[2]);
-        Vaccine vaccine = null;
+        // check 3: the number of doses has to be a positive whole number
+        int doses;
         try {
-            vaccine = new Vaccine.VaccineGetter(vaccineName).get();
-        } catch (SQLException e) {
-            System.out.println("Error occurred when adding doses");
-            e.printStackTrace();
+            doses = Integer.parseInt(tokens[2]);
+        } catch (NumberFormatException e) {
+            session.println("Please try again!");
+            return;
         }
-        // check 3: if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
-        //          table
-        if (vaccine == null) {
-            try {
-                vaccine = new Vaccine.VaccineBuilder(vaccineName, doses).build();
-                vaccine.saveToDB();
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
+        if (doses <= 0) {
+            session.println("Please try again!");
+            return;
+        }
+        try {
+            Vaccine vaccine = new Vaccine.VaccineGetter(vaccineName).get();
+            // check 4: if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
+            //          table
+            if (vaccine == null) {
+                try {
+                    new Vaccine.VaccineBuilder(vaccineName, doses).build().saveToDB();
+                } catch (SQLException e) {
+                    // another caregiver created it first; add to theirs instead
+                    if (!SqlErrors.isDuplicateKey(e)) {
+                        throw e;
+                    }
+                    vaccine = new Vaccine.VaccineGetter(vaccineName).get();
+                    if (vaccine == null) {
+                        throw e;
+                    }
+                }
             }
-        } else {
             // if the vaccine is not null, meaning that the vaccine already exists in our table
-            try {
+            if (vaccine != null) {
                 vaccine.increaseAvailableDoses(doses);
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
             }
+        } catch (SQLException e) {
+            // the doses were not added, so the update is not reported
+            session.println("Error occurred when adding doses");
+            error(e);
+            return;
         }
-        System.out.println("Doses updated!");
+        session.println("Doses updated!");
+        SearchCache.get().dosesChanged();
+        Waitlist.get().dosesAdded(vaccineName);
     }
 
-    private static void showAppointments(String[] tokens) {
+    private static void showAppointments(Session session, String[] tokens) {
         // TODO: Part 2
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        if(currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first");
+        if(!session.isLoggedIn()) {
+            session.println("Please login first");
             return;
         }
-        if(tokens.length != 1) {
-            System.out.println("Please try again");
+        // "show_appointments all" also lists the appointments that were archived
+        boolean all = tokens.length == 2 && tokens[1].equals("all");
+        if(tokens.length != 1 && !all) {
+            session.println("Please try again");
             return;
         }
         try {
-            String query = "";
-            if (currentPatient != null) {
+            List<Appointment> appointments = new ArrayList<>();
+            if (session.getPatient() != null) {
                 // For patients: appointment ID, vaccine name, date, and caregiver name
-                query = "SELECT id, Vaccine_name, Time, Caregiver_name FROM Appointments WHERE Patient_name = ? ORDER BY id";
+                String patient = session.getPatient().getUsername();
+                if (all) {
+                    appointments.addAll(Storage.get().getArchivedPatientAppointments(patient));
+                }
+                appointments.addAll(Storage.get().getPatientAppointments(patient));
             } else {
                 // For caregivers: appointment ID, vaccine name, date, and patient name
-                query = "SELECT id, Vaccine_name, Time, Patient_name FROM Appointments WHERE Caregiver_name = ? ORDER BY id";
+                String caregiver = session.getCaregiver().getUsername();
+                if (all) {
+                    appointments.addAll(Storage.get().getArchivedCaregiverAppointments(caregiver));
+                }
+                appointments.addAll(Storage.get().getCaregiverAppointments(caregiver));
             }
-            PreparedStatement stmt = con.prepareStatement(query);
-            if(currentPatient != null) {
-                stmt.setString(1, currentPatient.getUsername());
-            } else {
-                stmt.setString(1, currentCaregiver.getUsername());
+            if (all) {
+                appointments.sort(Comparator.comparingInt(Appointment::getId));
             }
 
-            ResultSet rs = stmt.executeQuery();
+            for (Appointment appointment : appointments) {
+                String otherUsername = (session.getPatient() != null) ? appointment.getCaregiverName() : appointment.getPatientName();
+                session.println(appointment.getId() + " " + appointment.getVaccineName() + " "
+                        + appointment.getTime() + " " + otherUsername);
+            }
+        } catch (SQLException e) {
+            session.println("Please try again");
+            error(e);
+        }
+    }
 
-            while (rs.next()) {
-                int appointmentId = rs.getInt("id");
-                String vaccineName = rs.getString("Vaccine_name");
-                Date date = rs.getDate("Time");
-                String otherUsername = (currentPatient != null) ? rs.getString("Caregiver_name") : rs.getString("Patient_name");
+    private static void export(Session session, String[] tokens) {
+        // export <from> <to> <csv|binary> <file>: every appointment in the range, for operations
+        if (session.getCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
+            return;
+        }
+        if (tokens.length != 5) {
+            session.println("Please try again!");
+            return;
+        }
+        // the server writes the file, so it can only replace files inside the file directory
+        Path file = resolveFile(tokens[4]);
+        if (file == null) {
+            session.println("Please use a file inside the file directory!");
+            return;
+        }
+        try {
+            Date from = Date.valueOf(tokens[1]);
+            Date to = Date.valueOf(tokens[2]);
+            AppointmentExporter.Format format = AppointmentExporter.Format.valueOf(tokens[3].toUpperCase());
+            Files.createDirectories(file.getParent());
+            session.println(new AppointmentExporter(Storage.get()).export(from, to, format, file).toString());
+        } catch (IllegalArgumentException e) {
+            session.println("Please enter valid dates and a format of csv or binary!");
+        } catch (IOException e) {
+            session.println("Could not write " + tokens[4]);
+        } catch (SQLException e) {
+            session.println("Error occurred when exporting");
+            error(e);
+        }
+    }
 
-                System.out.println(appointmentId + " " + vaccineName + " " + date + " " + otherUsername);
+    private static void archive(Session session, String[] tokens) {
+        // archive [<before_date>]: runs the archiver now, by default up to its usual horizon
+        if (session.getCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
+            return;
+        }
+        if (tokens.length > 2) {
+            session.println("Please try again!");
+            return;
+        }
+        try {
+            Date horizon = Archiver.get().horizon();
+            Date before = tokens.length == 2 ? Date.valueOf(tokens[1]) : horizon;
+            // appointments newer than the horizon can still be cancelled and their slots booked,
+            // so they stay in the current tables
+            if (before.after(horizon)) {
+                session.println("Only dates up to " + horizon + " can be archived!");
+                return;
             }
+            int[] moved = Archiver.get().archive(before);
+            session.println("Archived " + moved[0] + " appointments and " + moved[1]
+                    + " availabilities before " + before);
+        } catch (IllegalArgumentException e) {
+            session.println("Please enter a valid date!");
         } catch (SQLException e) {
-            System.out.println("Please try again");
-            e.printStackTrace();
-        } finally {
-            cm.closeConnection();
+            session.println("Error occurred when archiving");
+            error(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            session.println("Please try again!");
+        }
+    }
+
+    private static void explain(Session session, String[] tokens) {
+        // explain: the schema version and which queries have an index to use
+        if (session.getCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
+            return;
+        }
+        if (Storage.get() instanceof InMemoryStorageEngine) {
+            session.println("The memory storage engine has no schema or indexes");
+            return;
+        }
+        try {
+            SchemaManager schema = new SchemaManager();
+            session.println("Schema version " + schema.getCurrentVersion() + " of " + schema.getLatestVersion());
+            for (String line : schema.explain()) {
+                session.println(line);
+            }
+        } catch (SQLException e) {
+            session.println("Please try again");
+            error(e);
+        }
+    }
+
+    private static void stats(Session session, String[] tokens) {
+        // stats: latency and round trips per command, and the caches in front of the database;
+        // stats sql: the statements that took the most time, when SqlTrace is on
+        if (session.getCaregiver() == null) {
+            session.println("Please login as a caregiver first!");
+            return;
+        }
+        if (tokens.length == 2 && tokens[1].equals("sql")) {
+            if (!SqlTrace.get().isEnabled()) {
+                session.println("SQL tracing is off, start with SqlTrace=true");
+                return;
+            }
+            for (String line : SqlTrace.get().report(20)) {
+                session.println(line);
+            }
+            return;
         }
+        if (tokens.length != 1) {
+            session.println("Please try again!");
+            return;
+        }
+        for (String line : Metrics.get().report()) {
+            session.println(line);
+        }
+        session.println(SearchCache.get().toString());
+        session.println(Patient.cacheStats());
+        session.println(Caregiver.cacheStats());
+        session.println(Vaccine.cacheStats());
+    }
+
+    // a file named by a command, which has to stay inside the FileDirectory setting: in server mode
+    // the name comes from a client, and the file is read or written by the server; null if the
+    // name is absolute or climbs out of the directory
+    private static Path resolveFile(String name) {
+        Path directory = Paths.get(Config.get("FileDirectory", "files")).toAbsolutePath().normalize();
+        Path file;
+        try {
+            file = Paths.get(name);
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (file.isAbsolute()) {
+            return null;
+        }
+        Path resolved = directory.resolve(file).normalize();
+        return resolved.startsWith(directory) && !resolved.equals(directory) ? resolved : null;
+    }
+
+    // an error the command handled by telling its user; counted against the command
+    private static void error(Exception e) {
+        Metrics.get().commandFailed();
+        e.printStackTrace();
     }
 
-    private static void logout(String[] tokens) {
+    private static void logout(Session session, String[] tokens) {
         // TODO: Part 2
         if(tokens.length != 1) {
-            System.out.println("Please try again");
+            session.println("Please try again");
             return;
         }
-        if(currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first");
+        if(!session.isLoggedIn()) {
+            session.println("Please login first");
             return;
         }
         try {
-            currentCaregiver = null;
-            currentPatient = null;
-            System.out.println("Successfully logged out");
+            session.logout();
+            session.println("Successfully logged out");
         } catch (Exception e) {
-            System.out.println("Please try again");
-            e.printStackTrace();
+            session.println("Please try again");
+            error(e);
         }
     }
 }
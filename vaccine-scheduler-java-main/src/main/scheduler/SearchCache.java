@@ -0,0 +1,185 @@
+package scheduler;
+
+import scheduler.storage.Storage;
+import scheduler.util.Config;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rendered search_caregiver_schedule output, so repeated searches are answered from memory.
+ *
+ * The caregiver list is cached per date and the vaccine list once, as the text the command prints.
+ * The commands that change them invalidate exactly what they touched: a date when its availability
+ * changes, the vaccine list when any doses change. At most SearchCacheSize dates are kept (least
+ * recently used goes first), and every entry also expires after SearchCacheTtlMillis so changes
+ * made by another process show up eventually.
+ *
+ * A search that read the store while an invalidation happened does not cache what it read, since
+ * it may predate the change.
+ */
+public class SearchCache {
+
+    private static final SearchCache INSTANCE = new SearchCache(
+            Config.getInt("SearchCacheSize", 1000),
+            Config.getLong("SearchCacheTtlMillis", 5000));
+
+    private final long ttlNanos;
+    private final Map<Date, Entry> caregivers;
+    private Entry vaccines = null;
+    // bumped by every invalidation; a load that started before the bump is not cached
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    SearchCache(int capacity, long ttlMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.caregivers = new LinkedHashMap<Date, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Date, SearchCache.Entry> eldest) {
+                if (size() <= capacity) {
+                    return false;
+                }
+                evictions.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+    public static SearchCache get() {
+        return INSTANCE;
+    }
+
+    // the caregivers available on the date, one per line, or a message saying there are none
+    public String caregivers(Date date) throws SQLException {
+        synchronized (this) {
+            Entry entry = caregivers.get(date);
+            if (isFresh(entry)) {
+                hits.incrementAndGet();
+                return entry.text;
+            }
+        }
+        misses.incrementAndGet();
+        long loadedAt = generation.get();
+        List<String> usernames = Storage.get().getAvailableCaregivers(date);
+        String text = usernames.isEmpty() ? "No caregivers available." : String.join(System.lineSeparator(), usernames);
+        synchronized (this) {
+            if (generation.get() == loadedAt) {
+                caregivers.put(date, new Entry(text));
+            }
+        }
+        return text;
+    }
+
+    // every vaccine with its available doses, one per line
+    public String vaccines() throws SQLException {
+        synchronized (this) {
+            if (isFresh(vaccines)) {
+                hits.incrementAndGet();
+                return vaccines.text;
+            }
+        }
+        misses.incrementAndGet();
+        long loadedAt = generation.get();
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Integer> vaccine : Storage.get().getVaccines().entrySet()) {
+            if (text.length() > 0) {
+                text.append(System.lineSeparator());
+            }
+            text.append(vaccine.getKey()).append(' ').append(vaccine.getValue());
+        }
+        synchronized (this) {
+            if (generation.get() == loadedAt) {
+                vaccines = new Entry(text.toString());
+            }
+        }
+        return text.toString();
+    }
+
+    private boolean isFresh(Entry entry) {
+        return entry != null && System.nanoTime() - entry.loadedAt < ttlNanos;
+    }
+
+    // Invalidation
+    public synchronized void availabilityChanged(Date date) {
+        generation.incrementAndGet();
+        invalidations.incrementAndGet();
+        caregivers.remove(date);
+    }
+
+    public synchronized void availabilityChanged(Date from, Date to) {
+        generation.incrementAndGet();
+        invalidations.incrementAndGet();
+        caregivers.keySet().removeIf(date -> !date.before(from) && !date.after(to));
+    }
+
+    // after changes too broad to track, e.g. an import
+    public synchronized void clear() {
+        generation.incrementAndGet();
+        invalidations.incrementAndGet();
+        caregivers.clear();
+        vaccines = null;
+    }
+
+    public synchronized void dosesChanged() {
+        generation.incrementAndGet();
+        invalidations.incrementAndGet();
+        vaccines = null;
+    }
+
+    // Statistics
+    public synchronized int size() {
+        return caregivers.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return "SearchCache{" +
+                "dates=" + size() +
+                ", hits=" + hits.get() +
+                ", misses=" + misses.get() +
+                ", hitRatio=" + String.format("%.3f", getHitRatio()) +
+                ", evictions=" + evictions.get() +
+                ", invalidations=" + invalidations.get() +
+                '}';
+    }
+
+    private static class Entry {
+        private final String text;
+        private final long loadedAt = System.nanoTime();
+
+        Entry(String text) {
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package scheduler;
+
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+
+import java.io.PrintStream;
+
+/**
+ * The state of one connected user: who is logged in and where command output goes.
+ *
+ * The REPL in Scheduler.main has a single session writing to System.out; in server mode every
+ * client connection gets its own.
+ */
+public class Session {
+
+    // Note: it is always true that at most one of caregiver and patient is not null
+    //       since only one user can be logged-in per session at a time
+    private volatile Caregiver caregiver = null;
+    private volatile Patient patient = null;
+    private final PrintStream out;
+
+    public Session(PrintStream out) {
+        this.out = out;
+    }
+
+    public Caregiver getCaregiver() {
+        return caregiver;
+    }
+
+    public Patient getPatient() {
+        return patient;
+    }
+
+    public boolean isLoggedIn() {
+        return caregiver != null || patient != null;
+    }
+
+    public void login(Caregiver caregiver) {
+        this.caregiver = caregiver;
+        this.patient = null;
+    }
+
+    public void login(Patient patient) {
+        this.patient = patient;
+        this.caregiver = null;
+    }
+
+    public void logout() {
+        this.caregiver = null;
+        this.patient = null;
+    }
+
+    public PrintStream getOut() {
+        return out;
+    }
+
+    public void println(String line) {
+        out.println(line);
+    }
+}
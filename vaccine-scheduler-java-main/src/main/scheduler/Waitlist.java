@@ -0,0 +1,321 @@
+package scheduler;
+
+import scheduler.model.Appointment;
+import scheduler.model.Vaccine;
+import scheduler.storage.Reservation;
+import scheduler.storage.Storage;
+import scheduler.util.Config;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Patients waiting for a date and vaccine that had no caregiver or no doses when they reserved.
+ *
+ * Each (date, vaccine) pair has its own first-come-first-served queue. Nothing polls: uploading
+ * availability marks that date's queues, adding doses marks that vaccine's queues, and a single
+ * background worker then books the marked queues in batches of WaitlistBatchSize with
+ * reserveAll, telling each booked patient's session about the appointment. A queue is drained
+ * until it is empty or a batch comes up short, so one upload or delivery costs one pass no matter
+ * how many patients are waiting.
+ *
+ * A queue holds at most WaitlistMaxQueue patients and a patient waits in at most
+ * WaitlistMaxPerPatient queues. Queues for dates that have passed are dropped on the next pass,
+ * and a client's entries are dropped when its session ends.
+ */
+public class Waitlist {
+
+    private static final Waitlist INSTANCE = new Waitlist(Config.getInt("WaitlistBatchSize", 50),
+            Config.getInt("WaitlistMaxQueue", 1000),
+            Config.getInt("WaitlistMaxPerPatient", 5));
+
+    private final int batchSize;
+    private final int maxQueue;
+    private final int maxPerPatient;
+    private final ConcurrentMap<Key, Deque<Entry>> queues = new ConcurrentHashMap<>();
+    // patient -> the queues they wait in, to hold each patient to maxPerPatient
+    private final ConcurrentMap<String, Set<Key>> joined = new ConcurrentHashMap<>();
+    private final Set<Key> dirty = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final ExecutorService worker;
+
+    Waitlist(int batchSize, int maxQueue, int maxPerPatient) {
+        this.batchSize = batchSize;
+        this.maxQueue = maxQueue;
+        this.maxPerPatient = maxPerPatient;
+        this.worker = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "waitlist-fulfillment");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static Waitlist get() {
+        return INSTANCE;
+    }
+
+    // adds the patient to the end of the queue and returns their position in it; a patient who is
+    // already waiting keeps their place; 0 if the queue is full or the patient waits in too many
+    public int join(Date date, String vaccine, String patient, Session session) {
+        int[] position = new int[1];
+        queues.compute(new Key(date, vaccine), (key, queue) -> {
+            if (queue == null) {
+                queue = new ConcurrentLinkedDeque<>();
+            }
+            int i = 0;
+            for (Entry entry : queue) {
+                i++;
+                if (entry.patient.equals(patient)) {
+                    position[0] = i;
+                    return queue;
+                }
+            }
+            if (i >= maxQueue || !track(patient, key)) {
+                return queue.isEmpty() ? null : queue;
+            }
+            queue.addLast(new Entry(patient, session));
+            position[0] = i + 1;
+            return queue;
+        });
+        return position[0];
+    }
+
+    // takes the patient off the queue, e.g. once they booked the same date and vaccine themselves
+    public void leave(Date date, String vaccine, String patient) {
+        Key key = new Key(date, vaccine);
+        Deque<Entry> queue = queues.get(key);
+        if (queue == null) {
+            return;
+        }
+        for (Entry entry : queue) {
+            if (entry.patient.equals(patient) && queue.removeFirstOccurrence(entry)) {
+                untrack(patient, key);
+            }
+        }
+    }
+
+    // drops everything a session was waiting for, once its client has gone
+    public void leaveAll(Session session) {
+        for (Map.Entry<Key, Deque<Entry>> queue : queues.entrySet()) {
+            for (Entry entry : queue.getValue()) {
+                if (entry.session == session && queue.getValue().removeFirstOccurrence(entry)) {
+                    untrack(entry.patient, queue.getKey());
+                }
+            }
+        }
+    }
+
+    // records that the patient waits in the key's queue, unless they already wait in too many
+    private boolean track(String patient, Key key) {
+        boolean[] added = new boolean[1];
+        joined.compute(patient, (p, keys) -> {
+            if (keys == null) {
+                keys = new HashSet<>();
+            }
+            if (keys.size() < maxPerPatient) {
+                added[0] = keys.add(key);
+            }
+            return keys.isEmpty() ? null : keys;
+        });
+        return added[0];
+    }
+
+    private void untrack(String patient, Key key) {
+        joined.computeIfPresent(patient, (p, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    // Triggers
+    public void availabilityAdded(Date date) {
+        for (Key key : queues.keySet()) {
+            if (key.date.equals(date)) {
+                dirty.add(key);
+            }
+        }
+        scheduleDrain();
+    }
+
+    public void availabilityAdded(Date from, Date to) {
+        for (Key key : queues.keySet()) {
+            if (!key.date.before(from) && !key.date.after(to)) {
+                dirty.add(key);
+            }
+        }
+        scheduleDrain();
+    }
+
+    public void dosesAdded(String vaccine) {
+        for (Key key : queues.keySet()) {
+            if (key.vaccine.equals(vaccine)) {
+                dirty.add(key);
+            }
+        }
+        scheduleDrain();
+    }
+
+    // retries every queue, e.g. after an import added availability and doses in bulk
+    public void retryAll() {
+        dirty.addAll(queues.keySet());
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        // triggers that arrive while a pass is queued are picked up by that pass
+        if (!dirty.isEmpty() && drainScheduled.compareAndSet(false, true)) {
+            worker.execute(this::drain);
+        }
+    }
+
+    // Fulfillment, only ever run on the worker thread
+    private void drain() {
+        drainScheduled.set(false);
+        for (Key key : dirty) {
+            dirty.remove(key);
+            try {
+                fulfill(key);
+            } catch (SQLException | RuntimeException e) {
+                System.out.println("Error occurred when booking the waitlist for " + key.date + " " + key.vaccine);
+                e.printStackTrace();
+            }
+        }
+        // drop queues that were emptied or whose date has passed; compute keeps this from racing
+        // with join
+        Date today = Date.valueOf(LocalDate.now());
+        for (Key key : queues.keySet()) {
+            queues.computeIfPresent(key, (k, queue) -> {
+                if (!k.date.before(today)) {
+                    return queue.isEmpty() ? null : queue;
+                }
+                for (Entry entry : queue) {
+                    untrack(entry.patient, k);
+                }
+                return null;
+            });
+        }
+    }
+
+    private void fulfill(Key key) throws SQLException {
+        Deque<Entry> queue = queues.get(key);
+        while (queue != null && !queue.isEmpty()) {
+            List<Entry> batch = new ArrayList<>(batchSize);
+            Entry next;
+            while (batch.size() < batchSize && (next = queue.pollFirst()) != null) {
+                batch.add(next);
+            }
+            List<String> patients = new ArrayList<>(batch.size());
+            for (Entry entry : batch) {
+                patients.add(entry.patient);
+            }
+
+            List<Reservation> reservations;
+            try {
+                reservations = Storage.get().reserveAll(patients, key.date, key.date, key.vaccine);
+            } catch (SQLException | RuntimeException e) {
+                putBack(queue, batch);
+                throw e;
+            }
+            List<Entry> waiting = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                Entry entry = batch.get(i);
+                Reservation reservation = reservations.get(i);
+                if (reservation.isReserved()) {
+                    untrack(entry.patient, key);
+                    SearchCache.get().availabilityChanged(key.date);
+                    notifyBooked(entry, reservation.getAppointment());
+                } else if (reservation.getStatus() != Reservation.Status.UNKNOWN_PATIENT) {
+                    waiting.add(entry);
+                } else {
+                    untrack(entry.patient, key);
+                }
+            }
+            if (waiting.size() < batch.size()) {
+                SearchCache.get().dosesChanged();
+                Vaccine.evict(key.vaccine);
+            }
+            putBack(queue, waiting);
+            if (!waiting.isEmpty()) {
+                // out of caregivers or doses; wait for the next trigger
+                return;
+            }
+        }
+    }
+
+    // returns entries to the front of the queue in their original order
+    private static void putBack(Deque<Entry> queue, List<Entry> entries) {
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            queue.addFirst(entries.get(i));
+        }
+    }
+
+    private static void notifyBooked(Entry entry, Appointment appointment) {
+        // a session that has since logged out or switched users is not told; the appointment
+        // still shows up in show_appointments
+        Session session = entry.session;
+        if (session.getPatient() == null || !session.getPatient().getUsername().equals(entry.patient)) {
+            return;
+        }
+        session.println("Waitlist: Appointment ID " + appointment.getId() + ", Caregiver username "
+                + appointment.getCaregiverName() + ", Date " + appointment.getTime());
+    }
+
+    public int size() {
+        int size = 0;
+        for (Deque<Entry> queue : queues.values()) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    private static class Entry {
+        private final String patient;
+        private final Session session;
+
+        Entry(String patient, Session session) {
+            this.patient = patient;
+            this.session = session;
+        }
+    }
+
+    private static class Key {
+        private final Date date;
+        private final String vaccine;
+
+        Key(Date date, String vaccine) {
+            this.date = date;
+            this.vaccine = vaccine;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return date.equals(other.date) && vaccine.equals(other.vaccine);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(date, vaccine);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out appointment ids from blocks reserved in the AppointmentIds sequence (hi/lo style).
+ *
+ * One round trip reserves a whole block with sp_sequence_get_range; ids inside the block are then
+ * handed out with a single atomic increment, so reserving no longer scans Appointments for
+ * MAX(id). The sequence is durable and never gives the same range out twice, so several processes
+ * can allocate from it at once. Ids left over in a block when the process stops are simply never
+ * used; appointment ids may have gaps but are never reused.
+ */
+public class AppointmentIdAllocator {
+
+    // creates the sequence on first use, starting it after any ids already in Appointments, and
+    // reports the current largest id so blocks below it can be skipped
+    private static final String PREPARE =
+            "SET NOCOUNT ON; " +
+            "IF OBJECT_ID(N'dbo.AppointmentIds', N'SO') IS NULL " +
+            "BEGIN " +
+            "    DECLARE @start int = (SELECT ISNULL(MAX(id), 0) + 1 FROM Appointments); " +
+            "    EXEC (N'CREATE SEQUENCE dbo.AppointmentIds AS int START WITH ' " +
+            "          + CAST(@start AS nvarchar(20)) + N' INCREMENT BY 1'); " +
+            "END; " +
+            "SELECT ISNULL(MAX(id), 0) AS MaxId FROM Appointments;";
+
+    private static final String GET_RANGE =
+            "SET NOCOUNT ON; " +
+            "DECLARE @first sql_variant; " +
+            "EXEC sp_sequence_get_range @sequence_name = N'dbo.AppointmentIds', @range_size = ?, " +
+            "     @range_first_value = @first OUTPUT; " +
+            "SELECT CAST(@first AS bigint) AS First;";
+
+    // moves the sequence past the given id if it has not handed that far out yet; ranges only ever
+    // move it forward, so this is safe alongside processes reserving blocks at the same moment
+    private static final String ADVANCE =
+            "SET NOCOUNT ON; " +
+            "DECLARE @max bigint = ?; " +
+            "DECLARE @last bigint = (SELECT ISNULL(CAST(last_used_value AS bigint), CAST(start_value AS bigint) - 1) " +
+            "    FROM sys.sequences WHERE object_id = OBJECT_ID(N'dbo.AppointmentIds')); " +
+            "IF @last < @max " +
+            "BEGIN " +
+            "    DECLARE @size bigint = @max - @last; " +
+            "    DECLARE @first sql_variant; " +
+            "    EXEC sp_sequence_get_range @sequence_name = N'dbo.AppointmentIds', @range_size = @size, " +
+            "         @range_first_value = @first OUTPUT; " +
+            "END;";
+
+    // SQL Server error code for "There is already an object named ... in the database"
+    private static final int ALREADY_EXISTS = 2714;
+
+    private final int blockSize;
+    private volatile Block current = new Block(1, 0);
+    private boolean prepared = false;
+    // no id up to and including floor is handed out
+    private long floor = 0;
+
+    public AppointmentIdAllocator(int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive!");
+        }
+        this.blockSize = blockSize;
+    }
+
+    public int next() throws SQLException {
+        while (true) {
+            Block block = current;
+            long id = block.next.getAndIncrement();
+            if (id <= block.last) {
+                return (int) id;
+            }
+            // only threads that find the block used up take the lock, and only one of them refills it
+            synchronized (this) {
+                if (current == block) {
+                    current = reserveBlock();
+                }
+            }
+        }
+    }
+
+    // makes sure no id up to and including id is handed out from now on, e.g. after appointments
+    // were imported with their own ids
+    public synchronized void skipPast(long id) {
+        if (id <= floor) {
+            return;
+        }
+        floor = id;
+        if (current.next.get() <= id) {
+            // the rest of the current block may collide; start a new one on the next call
+            current = new Block(1, 0);
+        }
+    }
+
+    // makes the sequence itself skip ids up to and including id, on the caller's connection and in
+    // its transaction, so other processes allocating from it do not hand out imported ids either;
+    // without the sequence yet, the first process to use it starts it after MAX(id) anyway
+    public static void advancePast(Connection con, long id) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(ADVANCE);
+        statement.setLong(1, id);
+        statement.execute();
+    }
+
+    private Block reserveBlock() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("Could not get a database connection");
+        }
+        try {
+            if (!prepared) {
+                floor = Math.max(floor, prepareSequence(con));
+                prepared = true;
+            }
+            long first = getRange(con, blockSize);
+            long last = first + blockSize - 1;
+            if (last <= floor) {
+                // ids up to floor were written before the sequence existed; jump over them once
+                first = getRange(con, (int) (floor - last) + blockSize);
+                last = first + (floor - last) + blockSize - 1;
+            }
+            return new Block(Math.max(first, floor + 1), last);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static long prepareSequence(Connection con) throws SQLException {
+        try {
+            return queryLong(con.prepareStatement(PREPARE), "MaxId");
+        } catch (SQLException e) {
+            if (e.getErrorCode() != ALREADY_EXISTS) {
+                throw e;
+            }
+            // another process created the sequence at the same moment
+            return queryLong(con.prepareStatement(PREPARE), "MaxId");
+        }
+    }
+
+    private static long getRange(Connection con, int size) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(GET_RANGE);
+        statement.setInt(1, size);
+        return queryLong(statement, "First");
+    }
+
+    private static long queryLong(PreparedStatement statement, String column) throws SQLException {
+        ResultSet resultSet = statement.executeQuery();
+        if (!resultSet.next()) {
+            throw new SQLException("No " + column + " returned");
+        }
+        return resultSet.getLong(column);
+    }
+
+    private static class Block {
+        private final AtomicLong next;
+        private final long last;
+
+        Block(long first, long last) {
+            this.next = new AtomicLong(first);
+            this.last = last;
+        }
+    }
+}
@@ -1,41 +1,89 @@
 package scheduler.db;
 
+import scheduler.util.Config;
+
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 
 public class ConnectionManager {
 
-    private final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
-    private final String connectionUrl = "jdbc:sqlserver://" + System.getenv("Server") +
+    private static final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
+    private static final String connectionUrl = "jdbc:sqlserver://" + System.getenv("Server") +
             ".database.windows.net:1433;database=" + System.getenv("DBName");
-    private final String userName = System.getenv("UserID");
-    private final String userPass = System.getenv("Password");
+    private static final String userName = System.getenv("UserID");
+    private static final String userPass = System.getenv("Password");
+
+    // pool settings, see ConnectionPool
+    private static final int poolSize = Config.getInt("PoolSize", 10);
+    private static final long borrowTimeoutMillis = Config.getLong("PoolTimeoutMillis", 30_000);
+    private static final long idleTimeoutMillis = Config.getLong("PoolIdleTimeoutMillis", 600_000);
+    private static final long leakThresholdMillis = Config.getLong("PoolLeakThresholdMillis", 60_000);
+    private static final int statementCacheSize = Config.getInt("StatementCacheSize", 32);
+
+    private static volatile ConnectionPool pool = null;
 
     private Connection con = null;
 
     public ConnectionManager() {
-        try {
-            Class.forName(driverName);
-        } catch (ClassNotFoundException e) {
-            System.out.println(e.toString());
+    }
+
+    // the pool (and the driver) is only initialized the first time a connection is needed
+    public static ConnectionPool getPool() {
+        ConnectionPool p = pool;
+        if (p == null) {
+            synchronized (ConnectionManager.class) {
+                p = pool;
+                if (p == null) {
+                    try {
+                        Class.forName(driverName);
+                    } catch (ClassNotFoundException e) {
+                        System.out.println(e.toString());
+                    }
+                    p = new ConnectionPool(ConnectionManager::openPhysicalConnection, poolSize,
+                            borrowTimeoutMillis, idleTimeoutMillis, leakThresholdMillis, statementCacheSize);
+                    pool = p;
+                }
+            }
         }
+        return p;
     }
 
+    // closes the pool's connections, if it was ever created; Storage does this at exit, after the
+    // storage engine has written what it still held back
+    public static void shutdownPool() {
+        ConnectionPool p = pool;
+        if (p != null) {
+            p.shutdown();
+        }
+    }
+
+    private static Connection openPhysicalConnection() throws SQLException {
+        // with SqlTrace on, every statement on the connection is timed per SQL text
+        return SqlTrace.get().wrap(DriverManager.getConnection(connectionUrl, userName, userPass));
+    }
+
+    // borrows a connection from the pool; it must be handed back with closeConnection()
     public Connection createConnection() {
         try {
-            con = DriverManager.getConnection(connectionUrl, userName, userPass);
+            con = getPool().borrow();
         } catch (SQLException e) {
             e.printStackTrace();
         }
         return con;
     }
 
+    // returns the borrowed connection to the pool
     public void closeConnection() {
+        if (this.con == null) {
+            return;
+        }
         try {
             this.con.close();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            this.con = null;
         }
     }
 }
@@ -0,0 +1,548 @@
+package scheduler.db;
+
+import scheduler.metrics.Metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of physical connections.
+ *
+ * Callers borrow a connection with {@link #borrow()} and give it back by calling close() on it;
+ * the returned object is a thin handle, so closing it never closes the physical connection.
+ * Idle connections are validated before they are handed out again, evicted after sitting
+ * idle for too long, and connections that are held for longer than the leak threshold are
+ * reported together with the stack trace of the code that borrowed them.
+ *
+ * Each physical connection also keeps a {@link StatementCache}: prepareStatement(sql) on a pooled
+ * connection returns the statement prepared the last time the same SQL ran on that connection.
+ * Closing such a statement, or returning the connection, closes its result sets, resets it and
+ * leaves it in the cache for the next caller.
+ */
+public class ConnectionPool {
+
+    public interface ConnectionFactory {
+        Connection open() throws SQLException;
+    }
+
+    private final ConnectionFactory factory;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final long idleTimeoutMillis;
+    private final long leakThresholdMillis;
+    private final long validationBypassMillis;
+    private final int validationTimeoutSeconds;
+    private final int statementCacheSize;
+
+    // one permit per connection the pool is allowed to have checked out at once
+    private final Semaphore permits;
+    // most recently returned connections are reused first so the warm ones stay warm
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Set<PooledConnection> active = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService housekeeper;
+
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    private volatile boolean shutdown = false;
+
+    public ConnectionPool(ConnectionFactory factory, int maxSize, long borrowTimeoutMillis,
+                          long idleTimeoutMillis, long leakThresholdMillis, int statementCacheSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Pool size must be positive!");
+        }
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+        this.validationBypassMillis = 500;
+        this.validationTimeoutSeconds = 5;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, Math.min(idleTimeoutMillis, leakThresholdMillis) / 2);
+        housekeeper.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public Connection borrow() throws SQLException {
+        if (shutdown) {
+            throw new SQLException("Connection pool has been shut down");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLException("Timed out after " + borrowTimeoutMillis
+                        + "ms waiting for a connection (active=" + active.size() + ", max=" + maxSize + ")");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+
+        PooledConnection pooled;
+        try {
+            pooled = takeValidConnection();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        long waited = System.nanoTime() - start;
+        borrowCount.incrementAndGet();
+        waitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+
+        pooled.borrowedAt = System.currentTimeMillis();
+        pooled.borrowSite = leakThresholdMillis > 0 ? new Throwable("Connection borrowed here") : null;
+        pooled.leakReported = false;
+        active.add(pooled);
+        return pooled.newHandle();
+    }
+
+    private PooledConnection takeValidConnection() throws SQLException {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            // a connection that was in use a moment ago is almost certainly still alive, so skip
+            // the validation round trip for it
+            if (System.currentTimeMillis() - pooled.returnedAt < validationBypassMillis) {
+                return pooled;
+            }
+            if (isAlive(pooled)) {
+                return pooled;
+            }
+            destroy(pooled);
+        }
+        Connection physical = factory.open();
+        if (physical == null) {
+            throw new SQLException("Could not open a database connection");
+        }
+        created.incrementAndGet();
+        return new PooledConnection(this, physical, statementCacheSize);
+    }
+
+    private boolean isAlive(PooledConnection pooled) {
+        try {
+            return pooled.physical.isValid(validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    void release(PooledConnection pooled) {
+        active.remove(pooled);
+        pooled.borrowSite = null;
+        boolean reusable = !shutdown;
+        try {
+            if (pooled.physical.isClosed()) {
+                reusable = false;
+            } else if (!pooled.physical.getAutoCommit()) {
+                // never hand a half-finished transaction to the next borrower
+                pooled.physical.rollback();
+                pooled.physical.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            reusable = false;
+        }
+        if (reusable) {
+            pooled.returnedAt = System.currentTimeMillis();
+            idle.offerFirst(pooled);
+        } else {
+            destroy(pooled);
+        }
+        permits.release();
+    }
+
+    private void destroy(PooledConnection pooled) {
+        destroyed.incrementAndGet();
+        try {
+            pooled.close();
+        } catch (SQLException e) {
+            // the connection is being thrown away anyway
+        }
+    }
+
+    private void housekeep() {
+        long now = System.currentTimeMillis();
+        // the oldest idle connections sit at the tail of the deque
+        Iterator<PooledConnection> it = idle.descendingIterator();
+        while (it.hasNext()) {
+            PooledConnection pooled = it.next();
+            if (now - pooled.returnedAt > idleTimeoutMillis && idle.remove(pooled)) {
+                destroy(pooled);
+            }
+        }
+        if (leakThresholdMillis <= 0) {
+            return;
+        }
+        for (PooledConnection pooled : active) {
+            Throwable site = pooled.borrowSite;
+            if (!pooled.leakReported && site != null && now - pooled.borrowedAt > leakThresholdMillis) {
+                pooled.leakReported = true;
+                leaks.incrementAndGet();
+                System.out.println("Possible connection leak: connection held for "
+                        + (now - pooled.borrowedAt) + "ms without being returned");
+                site.printStackTrace();
+            }
+        }
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        housekeeper.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            destroy(pooled);
+        }
+    }
+
+    // Statistics
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getActiveCount() {
+        return active.size();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getWaitingCount() {
+        return permits.getQueueLength();
+    }
+
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    public long getTotalWaitNanos() {
+        return waitNanos.get();
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    public long getDestroyedCount() {
+        return destroyed.get();
+    }
+
+    public long getLeakCount() {
+        return leaks.get();
+    }
+
+    public long getStatementCacheHits() {
+        return StatementCache.getHitCount();
+    }
+
+    public long getStatementCacheMisses() {
+        return StatementCache.getMissCount();
+    }
+
+    public long getStatementCacheEvictions() {
+        return StatementCache.getEvictionCount();
+    }
+
+    @Override
+    public String toString() {
+        long borrows = borrowCount.get();
+        double avgWaitMillis = borrows == 0 ? 0 : waitNanos.get() / 1e6 / borrows;
+        return "ConnectionPool{" +
+                "active=" + getActiveCount() +
+                ", idle=" + getIdleCount() +
+                ", waiting=" + getWaitingCount() +
+                ", max=" + maxSize +
+                ", borrows=" + borrows +
+                ", avgWaitMs=" + String.format("%.3f", avgWaitMillis) +
+                ", maxWaitMs=" + String.format("%.3f", maxWaitNanos.get() / 1e6) +
+                ", timeouts=" + timeouts.get() +
+                ", created=" + created.get() +
+                ", destroyed=" + destroyed.get() +
+                ", leaks=" + leaks.get() +
+                ", statementHits=" + getStatementCacheHits() +
+                ", statementMisses=" + getStatementCacheMisses() +
+                '}';
+    }
+
+    /**
+     * A physical connection owned by the pool. Every borrow gets a fresh handle so that a caller
+     * holding on to an already-closed handle cannot touch the connection after someone else
+     * has borrowed it.
+     */
+    static class PooledConnection {
+        private final ConnectionPool pool;
+        final Connection physical;
+        volatile long borrowedAt;
+        volatile long returnedAt;
+        volatile Throwable borrowSite;
+        volatile boolean leakReported;
+        // null when statement caching is turned off
+        final StatementCache statements;
+
+        PooledConnection(ConnectionPool pool, Connection physical, int statementCacheSize) {
+            this.pool = pool;
+            this.physical = physical;
+            this.statements = statementCacheSize > 0 ? new StatementCache(physical, statementCacheSize) : null;
+        }
+
+        Connection newHandle() {
+            Handle handle = new Handle(this);
+            handle.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, handle);
+            return handle.proxy;
+        }
+
+        void close() throws SQLException {
+            if (statements != null) {
+                statements.closeAll();
+            }
+            physical.close();
+        }
+    }
+
+    private static class Handle implements InvocationHandler {
+        private final PooledConnection pooled;
+        private volatile boolean closed = false;
+        private Connection proxy;
+        // statements from prepareStatement(sql) that have not been closed yet
+        private final List<CachedStatementHandle> statements = new ArrayList<>();
+
+        Handle(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        // statements the caller left open go back before the connection does
+                        for (CachedStatementHandle statement : new ArrayList<>(statements)) {
+                            statement.release();
+                        }
+                        pooled.pool.release(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || pooled.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + pooled.physical + (closed ? ", returned" : "") + "]";
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("Connection has already been returned to the pool");
+            }
+            if (pooled.statements != null && method.getName().equals("prepareStatement") && args.length == 1) {
+                return cachedStatement((String) args[0]);
+            }
+            switch (method.getName()) {
+                case "commit":
+                case "rollback":
+                    return timed(pooled.physical, method, args);
+                case "createStatement":
+                case "prepareStatement":
+                case "prepareCall":
+                    // statements that bypass the cache are timed too
+                    Object statement = forward(pooled.physical, method, args);
+                    return Proxy.newProxyInstance(Statement.class.getClassLoader(),
+                            new Class<?>[]{method.getReturnType()}, new TimedStatementHandle(this, (Statement) statement));
+                default:
+                    return forward(pooled.physical, method, args);
+            }
+        }
+
+        // the cached statement, or one of the caller's own while the cached one is in use, e.g. the
+        // same SQL prepared twice before the first is closed
+        private PreparedStatement cachedStatement(String sql) throws SQLException {
+            StatementCache.Cached entry = pooled.statements.acquire(sql);
+            PreparedStatement statement = entry != null ? entry.statement : pooled.physical.prepareStatement(sql);
+            CachedStatementHandle handle = new CachedStatementHandle(this, statement, entry);
+            statements.add(handle);
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, handle);
+        }
+    }
+
+    /**
+     * What callers see of a cached statement. close() closes its result sets, clears its parameters
+     * and batch, puts back any options the caller changed and hands the statement back to the cache
+     * for the next caller; the statement stops working once its connection handle has been returned.
+     */
+    private static class CachedStatementHandle implements InvocationHandler {
+        private static final Set<String> OPTIONS = Set.of("setFetchSize", "setFetchDirection", "setMaxRows",
+                "setLargeMaxRows", "setMaxFieldSize", "setQueryTimeout", "setEscapeProcessing");
+
+        private final Handle connection;
+        private final PreparedStatement statement;
+        // null when the statement is not from the cache; it is then closed for real
+        private final StatementCache.Cached entry;
+        private final List<ResultSet> results = new ArrayList<>();
+        private boolean optionsChanged = false;
+        private boolean closed = false;
+
+        CachedStatementHandle(Handle connection, PreparedStatement statement, StatementCache.Cached entry) {
+            this.connection = connection;
+            this.statement = statement;
+            this.entry = entry;
+        }
+
+        void release() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            connection.statements.remove(this);
+            if (entry == null) {
+                StatementCache.closeQuietly(statement);
+                return;
+            }
+            try {
+                for (ResultSet resultSet : results) {
+                    resultSet.close();
+                }
+                statement.clearParameters();
+                statement.clearBatch();
+                if (optionsChanged) {
+                    entry.resetOptions();
+                }
+            } catch (SQLException e) {
+                // a statement that cannot be reset is not handed out again
+                StatementCache.closeQuietly(statement);
+            } finally {
+                results.clear();
+                connection.pooled.statements.release(entry);
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    release();
+                    return null;
+                case "isClosed":
+                    return closed || connection.closed || statement.isClosed();
+                case "getConnection":
+                    return connection.proxy;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "CachedStatement[" + statement + "]";
+                default:
+                    break;
+            }
+            if (closed || connection.closed) {
+                throw new SQLException("Statement has been closed");
+            }
+            if (OPTIONS.contains(method.getName())) {
+                optionsChanged = true;
+            } else if (method.getName().startsWith("execute")) {
+                // executing again closes the statement's earlier result sets
+                results.clear();
+            }
+            Object result = method.getName().startsWith("execute") ? timed(statement, method, args) : forward(statement, method, args);
+            if (result instanceof ResultSet) {
+                results.add((ResultSet) result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A statement that is not cached, e.g. one with a cursor type or a text that varies; it is
+     * closed as usual and only adds timing.
+     */
+    private static class TimedStatementHandle implements InvocationHandler {
+        private final Handle connection;
+        private final Statement statement;
+
+        TimedStatementHandle(Handle connection, Statement statement) {
+            this.connection = connection;
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "getConnection":
+                    return connection.proxy;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "TimedStatement[" + statement + "]";
+                default:
+                    break;
+            }
+            return method.getName().startsWith("execute") ? timed(statement, method, args) : forward(statement, method, args);
+        }
+    }
+
+    private static Object forward(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    // a call that goes to the server: executing a statement, committing or rolling back
+    private static Object timed(Object target, Method method, Object[] args) throws Throwable {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Object result = forward(target, method, args);
+            failed = false;
+            return result;
+        } finally {
+            Metrics.get().roundTrip(System.nanoTime() - start, failed);
+        }
+    }
+}
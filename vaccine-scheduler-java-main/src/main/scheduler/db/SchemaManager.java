@@ -0,0 +1,287 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Brings the database schema up to date by applying numbered migrations, and reports which of the
+ * application's queries have no index to use.
+ *
+ * Every migration runs in its own transaction together with the row recording it in SchemaVersion,
+ * so a migration is either fully applied and recorded or not at all. An application lock is held
+ * while migrating, so several processes starting at once apply each migration exactly once. New
+ * migrations go at the end of MIGRATIONS with the next version number; applied ones are never
+ * edited.
+ */
+public class SchemaManager {
+
+    private static final List<Migration> MIGRATIONS = Arrays.asList(
+            new Migration(1, "Tables from create.sql",
+                    "IF OBJECT_ID(N'dbo.Caregivers', N'U') IS NULL " +
+                    "CREATE TABLE Caregivers (Username varchar(255), Salt BINARY(16), Hash BINARY(16), " +
+                    "PRIMARY KEY (Username))",
+                    "IF OBJECT_ID(N'dbo.Availabilities', N'U') IS NULL " +
+                    "CREATE TABLE Availabilities (Time date, Username varchar(255) REFERENCES Caregivers, " +
+                    "PRIMARY KEY (Time, Username))",
+                    "IF OBJECT_ID(N'dbo.Vaccines', N'U') IS NULL " +
+                    "CREATE TABLE Vaccines (Name varchar(255), Doses int, PRIMARY KEY (Name))",
+                    "IF OBJECT_ID(N'dbo.Patients', N'U') IS NULL " +
+                    "CREATE TABLE Patients (Username varchar(255), Salt BINARY(16), Hash BINARY(16), " +
+                    "PRIMARY KEY (Username))",
+                    "IF OBJECT_ID(N'dbo.Appointments', N'U') IS NULL " +
+                    "CREATE TABLE Appointments (id int, Time date, Caregiver_name varchar(255) REFERENCES Caregivers, " +
+                    "Vaccine_name varchar(255) REFERENCES Vaccines, Patient_name varchar(255) REFERENCES Patients, " +
+                    "PRIMARY KEY (id))"),
+            new Migration(2, "Indexes for show_appointments and the availability range search",
+                    // show_appointments for a patient or a caregiver; the other columns are included so
+                    // the query never has to visit the table
+                    "IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = N'IX_Appointments_Patient') " +
+                    "CREATE INDEX IX_Appointments_Patient ON Appointments (Patient_name) " +
+                    "INCLUDE (Time, Caregiver_name, Vaccine_name)",
+                    "IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = N'IX_Appointments_Caregiver') " +
+                    "CREATE INDEX IX_Appointments_Caregiver ON Appointments (Caregiver_name) " +
+                    "INCLUDE (Time, Vaccine_name, Patient_name)",
+                    // whether a caregiver slot is already booked, checked by the availability search
+                    "IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = N'IX_Appointments_Slot') " +
+                    "CREATE INDEX IX_Appointments_Slot ON Appointments (Time, Caregiver_name)"),
+            new Migration(3, "Archive tables for past appointments and availabilities",
+                    // no foreign keys: OUTPUT INTO cannot target a table that has them, and archived
+                    // rows are history that nothing else refers to
+                    "IF OBJECT_ID(N'dbo.AppointmentsArchive', N'U') IS NULL " +
+                    "CREATE TABLE AppointmentsArchive (id int, Time date, Caregiver_name varchar(255), " +
+                    "Vaccine_name varchar(255), Patient_name varchar(255), PRIMARY KEY (id))",
+                    "IF OBJECT_ID(N'dbo.AvailabilitiesArchive', N'U') IS NULL " +
+                    "CREATE TABLE AvailabilitiesArchive (Time date, Username varchar(255), PRIMARY KEY (Time, Username))",
+                    "IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = N'IX_AppointmentsArchive_Patient') " +
+                    "CREATE INDEX IX_AppointmentsArchive_Patient ON AppointmentsArchive (Patient_name) " +
+                    "INCLUDE (Time, Caregiver_name, Vaccine_name)",
+                    "IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = N'IX_AppointmentsArchive_Caregiver') " +
+                    "CREATE INDEX IX_AppointmentsArchive_Caregiver ON AppointmentsArchive (Caregiver_name) " +
+                    "INCLUDE (Time, Vaccine_name, Patient_name)"),
+            new Migration(4, "Covering date indexes for exporting appointments",
+                    // export reads each table in index order, so it streams without a sort; migration 2
+                    // created IX_Appointments_Slot, this adds the columns export reads
+                    "CREATE INDEX IX_Appointments_Slot ON Appointments (Time, Caregiver_name) " +
+                    "INCLUDE (Vaccine_name, Patient_name) WITH (DROP_EXISTING = ON)",
+                    "IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = N'IX_AppointmentsArchive_Time') " +
+                    "CREATE INDEX IX_AppointmentsArchive_Time ON AppointmentsArchive (Time) " +
+                    "INCLUDE (Caregiver_name, Vaccine_name, Patient_name)"),
+            new Migration(5, "Caregiver appointments by date for cancel <date> [<to>]",
+                    // Time moves from the included columns into the key, so a caregiver's date range is
+                    // a seek; show_appointments for a caregiver still finds everything it reads here
+                    "CREATE INDEX IX_Appointments_Caregiver ON Appointments (Caregiver_name, Time) " +
+                    "INCLUDE (Vaccine_name, Patient_name) WITH (DROP_EXISTING = ON)"));
+
+    // how each query the storage engine issues finds its rows: the table and the columns it filters
+    // on; a path compares each of its columns for equality, except a range column, which comes
+    // last and is compared with < or >= and <=
+    private static final List<AccessPath> ACCESS_PATHS = Arrays.asList(
+            new AccessPath("login, create_patient, bulk_reserve", "Patients", "Username"),
+            new AccessPath("login, create_caregiver", "Caregivers", "Username"),
+            new AccessPath("search_caregiver_schedule, reserve", "Availabilities", "Time"),
+            new AccessPath("reserve, cancel, availability write-behind", "Availabilities", "Username", "Time"),
+            new AccessPath("archive", "Availabilities").range("Time"),
+            new AccessPath("search_caregiver_schedule <from> <to>, upload_availability", "Appointments",
+                    "Time", "Caregiver_name"),
+            new AccessPath("reserve, add_doses", "Vaccines", "Name"),
+            new AccessPath("cancel <id>", "Appointments", "id"),
+            new AccessPath("cancel <date> [<to>]", "Appointments", "Caregiver_name").range("Time"),
+            new AccessPath("show_appointments (patient)", "Appointments", "Patient_name"),
+            new AccessPath("show_appointments (caregiver)", "Appointments", "Caregiver_name"),
+            new AccessPath("archive, export", "Appointments").range("Time"),
+            new AccessPath("export", "AppointmentsArchive").range("Time"),
+            new AccessPath("show_appointments all (patient)", "AppointmentsArchive", "Patient_name"),
+            new AccessPath("show_appointments all (caregiver)", "AppointmentsArchive", "Caregiver_name"),
+            new AccessPath("import appointments", "AppointmentsArchive", "id"));
+
+    public int getLatestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+    }
+
+    // applies every migration newer than the recorded version; returns how many were applied
+    public int migrate() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            try (Statement statement = con.createStatement()) {
+                statement.execute(
+                        "IF OBJECT_ID(N'dbo.SchemaVersion', N'U') IS NULL " +
+                        "CREATE TABLE SchemaVersion (Version int PRIMARY KEY, Description varchar(255), " +
+                        "AppliedAt datetime2 DEFAULT SYSUTCDATETIME())");
+            }
+            int applied = 0;
+            for (Migration migration : MIGRATIONS) {
+                if (apply(con, migration)) {
+                    System.out.println("Applied schema migration " + migration.version + ": " + migration.description);
+                    applied++;
+                }
+            }
+            return applied;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static boolean apply(Connection con, Migration migration) throws SQLException {
+        con.setAutoCommit(false);
+        try {
+            // held until the transaction ends, so another process migrating waits here and then
+            // finds the migration already recorded
+            PreparedStatement lock = con.prepareStatement(
+                    "EXEC sp_getapplock @Resource = N'SchemaManager', @LockMode = N'Exclusive', " +
+                    "@LockOwner = N'Transaction', @LockTimeout = 60000");
+            lock.execute();
+            PreparedStatement check = con.prepareStatement("SELECT 1 FROM SchemaVersion WHERE Version = ?");
+            check.setInt(1, migration.version);
+            if (check.executeQuery().next()) {
+                con.commit();
+                return false;
+            }
+            // migrations run once, so their statements are not worth keeping prepared
+            try (Statement statement = con.createStatement()) {
+                for (String sql : migration.statements) {
+                    statement.execute(sql);
+                }
+            }
+            PreparedStatement record = con.prepareStatement(
+                    "INSERT INTO SchemaVersion (Version, Description) VALUES (?, ?)");
+            record.setInt(1, migration.version);
+            record.setString(2, migration.description);
+            record.executeUpdate();
+            con.commit();
+            return true;
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            con.setAutoCommit(true);
+        }
+    }
+
+    // returns 0 if no migration has been applied
+    public int getCurrentVersion() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            PreparedStatement statement = con.prepareStatement(
+                    "IF OBJECT_ID(N'dbo.SchemaVersion', N'U') IS NULL SELECT 0 AS Version " +
+                    "ELSE SELECT ISNULL(MAX(Version), 0) AS Version FROM SchemaVersion");
+            ResultSet resultSet = statement.executeQuery();
+            resultSet.next();
+            return resultSet.getInt("Version");
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // one line per access path, saying which index serves it or that none does
+    public List<String> explain() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            Map<String, Map<String, List<String>>> indexesByTable = new LinkedHashMap<>();
+            List<String> lines = new ArrayList<>();
+            for (AccessPath path : ACCESS_PATHS) {
+                Map<String, List<String>> indexes = indexesByTable.get(path.table);
+                if (indexes == null) {
+                    indexes = keyColumns(con, path.table);
+                    indexesByTable.put(path.table, indexes);
+                }
+                String index = findIndex(indexes, path);
+                List<String> columns = new ArrayList<>(path.columns);
+                if (path.range != null) {
+                    columns.add(path.range + " range");
+                }
+                lines.add((index == null ? "NO INDEX  " : "ok        ") + path.table + "(" + String.join(", ", columns)
+                        + ")" + (index == null ? "" : " via " + index) + "  -- " + path.query);
+            }
+            return lines;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // index name -> key columns in key order
+    private static Map<String, List<String>> keyColumns(Connection con, String table) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(
+                "SELECT i.name AS IndexName, c.name AS ColumnName FROM sys.indexes i " +
+                "JOIN sys.index_columns ic ON ic.object_id = i.object_id AND ic.index_id = i.index_id " +
+                "JOIN sys.columns c ON c.object_id = ic.object_id AND c.column_id = ic.column_id " +
+                "WHERE i.object_id = OBJECT_ID(?) AND ic.key_ordinal > 0 " +
+                "ORDER BY i.index_id, ic.key_ordinal");
+        statement.setString(1, "dbo." + table);
+        ResultSet resultSet = statement.executeQuery();
+        Map<String, List<String>> indexes = new LinkedHashMap<>();
+        while (resultSet.next()) {
+            indexes.computeIfAbsent(resultSet.getString("IndexName"), name -> new ArrayList<>())
+                    .add(resultSet.getString("ColumnName").toLowerCase());
+        }
+        return indexes;
+    }
+
+    // an index serves the path if its leading key columns are the path's equality columns, in any
+    // order, followed by its range column if it has one
+    private static String findIndex(Map<String, List<String>> indexes, AccessPath path) {
+        Set<String> wanted = new HashSet<>();
+        for (String column : path.columns) {
+            wanted.add(column.toLowerCase());
+        }
+        int size = wanted.size() + (path.range == null ? 0 : 1);
+        for (Map.Entry<String, List<String>> index : indexes.entrySet()) {
+            List<String> keys = index.getValue();
+            if (keys.size() >= size && new HashSet<>(keys.subList(0, wanted.size())).equals(wanted)
+                    && (path.range == null || keys.get(wanted.size()).equals(path.range.toLowerCase()))) {
+                return index.getKey();
+            }
+        }
+        return null;
+    }
+
+    private static Connection open(ConnectionManager cm) throws SQLException {
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("Could not get a database connection");
+        }
+        return con;
+    }
+
+    private static class Migration {
+        private final int version;
+        private final String description;
+        private final List<String> statements;
+
+        Migration(int version, String description, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.statements = Arrays.asList(statements);
+        }
+    }
+
+    private static class AccessPath {
+        private final String query;
+        private final String table;
+        private final List<String> columns;
+        private String range = null;
+
+        AccessPath(String query, String table, String... columns) {
+            this.query = query;
+            this.table = table;
+            this.columns = Arrays.asList(columns);
+        }
+
+        AccessPath range(String column) {
+            this.range = column;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package scheduler.db;
+
+import scheduler.util.Config;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Statistics per SQL text, and a log of the statements slower than SlowQueryMillis, for every
+ * statement run on the connections ConnectionManager opens.
+ *
+ * Turned on with SqlTrace. When it is off, wrap() hands back the driver's connection untouched, so
+ * tracing costs nothing. When it is on, each physical connection, and every statement and result set
+ * it creates, is wrapped to time executions and count the rows they return or change.
+ *
+ * Slow statements are queued and written to SlowQueryLog by a background thread, so a slow disk
+ * never slows a command down; if the queue is full the entry is dropped and counted. The log has
+ * the SQL text as prepared, with "?" for bound parameters and string literals replaced by '?', so
+ * no patient data ends up in it.
+ */
+public class SqlTrace {
+
+    private static final SqlTrace INSTANCE = new SqlTrace(
+            Config.getBoolean("SqlTrace", false),
+            Config.getLong("SlowQueryMillis", 100),
+            Config.get("SlowQueryLog", "slow-queries.log"),
+            Config.getInt("SqlTraceMaxStatements", 1000));
+
+    // statements beyond SqlTraceMaxStatements distinct texts are counted together under this one
+    private static final String OTHER = "(other statements)";
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+
+    private final boolean enabled;
+    private final long slowNanos;
+    private final String logFile;
+    private final int maxStatements;
+    private final ConcurrentMap<String, SqlStats> statements = new ConcurrentHashMap<>();
+    private final BlockingQueue<String> slowQueries = new ArrayBlockingQueue<>(10_000);
+    private final AtomicLong droppedLogEntries = new AtomicLong();
+    private volatile Thread writer = null;
+
+    SqlTrace(boolean enabled, long slowMillis, String logFile, int maxStatements) {
+        this.enabled = enabled;
+        this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+        this.logFile = logFile;
+        this.maxStatements = maxStatements;
+    }
+
+    public static SqlTrace get() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // the connection to hand out in place of the driver's
+    Connection wrap(Connection physical) {
+        if (!enabled) {
+            return physical;
+        }
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new TracedConnection(physical));
+    }
+
+    // Statistics
+    public List<SqlStats> getStatements() {
+        return new ArrayList<>(statements.values());
+    }
+
+    public long getDroppedLogEntries() {
+        return droppedLogEntries.get();
+    }
+
+    // one line per statement text, the most time-consuming first
+    public List<String> report(int limit) {
+        List<SqlStats> sorted = getStatements();
+        sorted.sort((a, b) -> Long.compare(b.getTotalNanos(), a.getTotalNanos()));
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("%9s %10s %9s %10s  %s", "count", "total ms", "max ms", "rows", "sql"));
+        for (SqlStats stats : sorted.subList(0, Math.min(limit, sorted.size()))) {
+            lines.add(String.format("%9d %10.1f %9.3f %10d  %s", stats.getExecutions(), stats.getTotalNanos() / 1e6,
+                    stats.getMaxNanos() / 1e6, stats.getRows(), redact(stats.getSql())));
+        }
+        return lines;
+    }
+
+    private SqlStats statsFor(String sql) {
+        SqlStats stats = statements.get(sql);
+        if (stats != null) {
+            return stats;
+        }
+        if (statements.size() >= maxStatements) {
+            return statements.computeIfAbsent(OTHER, SqlStats::new);
+        }
+        return statements.computeIfAbsent(sql, SqlStats::new);
+    }
+
+    // rows is -1 for a query, whose rows are counted as they are read
+    private void executed(SqlStats stats, long nanos, long rows, int parameters, boolean failed) {
+        stats.executions.increment();
+        stats.totalNanos.add(nanos);
+        stats.rows.add(Math.max(0, rows));
+        stats.maxNanos.accumulateAndGet(nanos, Math::max);
+        if (nanos >= slowNanos) {
+            logSlow(stats.sql, nanos, rows, parameters, failed);
+        }
+    }
+
+    // Slow-query log
+    private void logSlow(String sql, long nanos, long rows, int parameters, boolean failed) {
+        String entry = Instant.now() + String.format(" %.3f ms", nanos / 1e6) + (failed ? " FAILED" : rows < 0 ? "" : " rows=" + rows)
+                + " params=" + parameters + " " + redact(sql);
+        if (!slowQueries.offer(entry)) {
+            droppedLogEntries.incrementAndGet();
+            return;
+        }
+        if (writer == null) {
+            startWriter();
+        }
+    }
+
+    static String redact(String sql) {
+        return STRING_LITERAL.matcher(sql).replaceAll("'?'").replaceAll("\\s+", " ");
+    }
+
+    private synchronized void startWriter() {
+        if (writer != null) {
+            return;
+        }
+        writer = new Thread(this::writeLog, "slow-query-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void writeLog() {
+        try (BufferedWriter out = Files.newBufferedWriter(Paths.get(logFile), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            while (true) {
+                out.write(slowQueries.take());
+                out.newLine();
+                // written out whenever the queue runs dry, so entries reach the file promptly
+                // without a flush per line under load
+                if (slowQueries.isEmpty()) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Could not write the slow query log " + logFile);
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static class SqlStats {
+        private final String sql;
+        private final LongAdder executions = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        SqlStats(String sql) {
+            this.sql = sql;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public long getExecutions() {
+            return executions.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        // rows read from result sets plus rows changed by updates
+        public long getRows() {
+            return rows.sum();
+        }
+
+        @Override
+        public String toString() {
+            return "SqlStats{" +
+                    "executions=" + getExecutions() +
+                    ", totalMillis=" + getTotalNanos() / 1_000_000 +
+                    ", maxMillis=" + getMaxNanos() / 1_000_000 +
+                    ", rows=" + getRows() +
+                    ", sql=" + sql +
+                    '}';
+        }
+    }
+
+    private static Object forward(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private class TracedConnection implements InvocationHandler {
+        private final Connection physical;
+
+        TracedConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object result = forward(physical, method, args);
+            switch (method.getName()) {
+                case "createStatement":
+                    return traced(method.getReturnType(), new TracedStatement((Statement) result, null));
+                case "prepareStatement":
+                case "prepareCall":
+                    return traced(method.getReturnType(), new TracedStatement((Statement) result, (String) args[0]));
+                default:
+                    return result;
+            }
+        }
+    }
+
+    private static Object traced(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private class TracedStatement implements InvocationHandler {
+        private final Statement statement;
+        // null for a plain Statement, whose SQL comes with each execute
+        private final String sql;
+        private int parameters = 0;
+        private SqlStats lastExecuted = null;
+
+        TracedStatement(Statement statement, String sql) {
+            this.statement = statement;
+            this.sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                parameters = Math.max(parameters, (Integer) args[0]);
+            } else if (name.equals("clearParameters")) {
+                parameters = 0;
+            }
+            if (name.equals("getResultSet")) {
+                // the result of execute(), which was timed when it ran
+                ResultSet resultSet = (ResultSet) forward(statement, method, args);
+                return resultSet == null || lastExecuted == null ? resultSet : countRows(resultSet, lastExecuted);
+            }
+            if (!name.startsWith("execute")) {
+                return forward(statement, method, args);
+            }
+
+            // a plain Statement's batch has no single text
+            String text = sql != null ? sql : args != null && args.length > 0 ? (String) args[0] : "(statement batch)";
+            SqlStats stats = statsFor(name.equals("executeBatch") ? "[batch] " + text : text);
+            long start = System.nanoTime();
+            Object result;
+            try {
+                result = forward(statement, method, args);
+            } catch (Throwable e) {
+                executed(stats, System.nanoTime() - start, 0, parameters, true);
+                throw e;
+            }
+            long elapsed = System.nanoTime() - start;
+            lastExecuted = stats;
+            if (result instanceof ResultSet) {
+                executed(stats, elapsed, -1, parameters, false);
+                return countRows((ResultSet) result, stats);
+            }
+            executed(stats, elapsed, changedRows(result), parameters, false);
+            return result;
+        }
+
+        private long changedRows(Object result) {
+            if (result instanceof Integer) {
+                return Math.max(0, (Integer) result);
+            }
+            if (result instanceof Long) {
+                return Math.max(0, (Long) result);
+            }
+            long total = 0;
+            if (result instanceof int[]) {
+                for (int count : (int[]) result) {
+                    total += Math.max(0, count);
+                }
+            }
+            return total;
+        }
+
+        private ResultSet countRows(ResultSet resultSet, SqlStats stats) {
+            return (ResultSet) traced(ResultSet.class, (proxy, method, args) -> {
+                Object result = forward(resultSet, method, args);
+                if (method.getName().equals("next") && Boolean.TRUE.equals(result)) {
+                    stats.rows.increment();
+                }
+                return result;
+            });
+        }
+    }
+}
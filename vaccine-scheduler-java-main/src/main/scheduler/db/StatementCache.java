@@ -0,0 +1,144 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prepared statements of one physical connection, keyed by SQL text.
+ *
+ * The application only issues a small fixed set of statements, so keeping them prepared for the
+ * lifetime of the pooled connection saves a parse/prepare round trip on almost every command.
+ * The least recently used statement is closed once the cache is full, and everything is closed
+ * together with the connection.
+ *
+ * A statement is handed to one caller at a time: while it is in use, preparing the same SQL again
+ * gets null and the caller prepares a statement of its own, and evicting it only takes it out of
+ * the cache, leaving the close to whoever releases it.
+ */
+class StatementCache {
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    private final Connection physical;
+    private final Map<String, Cached> statements;
+
+    StatementCache(Connection physical, int capacity) {
+        this.physical = physical;
+        this.statements = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                if (size() <= capacity) {
+                    return false;
+                }
+                evictions.incrementAndGet();
+                if (eldest.getValue().inUse) {
+                    eldest.getValue().evicted = true;
+                } else {
+                    closeQuietly(eldest.getValue().statement);
+                }
+                return true;
+            }
+        };
+    }
+
+    // the cached statement for sql, now in use; null if it is already in use
+    synchronized Cached acquire(String sql) throws SQLException {
+        Cached entry = statements.get(sql);
+        if (entry != null && entry.inUse) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry != null && !entry.statement.isClosed()) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            entry = new Cached(physical.prepareStatement(sql));
+            statements.put(sql, entry);
+        }
+        entry.inUse = true;
+        return entry;
+    }
+
+    // the caller is done with the statement and has reset it
+    synchronized void release(Cached entry) {
+        entry.inUse = false;
+        if (entry.evicted) {
+            closeQuietly(entry.statement);
+        }
+    }
+
+    synchronized int size() {
+        return statements.size();
+    }
+
+    synchronized void closeAll() {
+        List<Cached> open = new ArrayList<>(statements.values());
+        statements.clear();
+        for (Cached entry : open) {
+            closeQuietly(entry.statement);
+        }
+    }
+
+    static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            // the statement is being discarded anyway
+        }
+    }
+
+    /**
+     * A cached statement, and the options it was prepared with so that a caller who changed them
+     * can put them back before the next caller gets it.
+     */
+    static class Cached {
+        final PreparedStatement statement;
+        final int fetchSize;
+        final int fetchDirection;
+        final int maxRows;
+        final int maxFieldSize;
+        final int queryTimeout;
+        private boolean inUse = false;
+        private boolean evicted = false;
+
+        Cached(PreparedStatement statement) throws SQLException {
+            this.statement = statement;
+            this.fetchSize = statement.getFetchSize();
+            this.fetchDirection = statement.getFetchDirection();
+            this.maxRows = statement.getMaxRows();
+            this.maxFieldSize = statement.getMaxFieldSize();
+            this.queryTimeout = statement.getQueryTimeout();
+        }
+
+        void resetOptions() throws SQLException {
+            statement.setFetchSize(fetchSize);
+            statement.setFetchDirection(fetchDirection);
+            statement.setMaxRows(maxRows);
+            statement.setMaxFieldSize(maxFieldSize);
+            statement.setQueryTimeout(queryTimeout);
+            statement.setEscapeProcessing(true);
+        }
+    }
+
+    // Statistics, summed over every pooled connection
+    static long getHitCount() {
+        return hits.get();
+    }
+
+    static long getMissCount() {
+        return misses.get();
+    }
+
+    static long getEvictionCount() {
+        return evictions.get();
+    }
+}
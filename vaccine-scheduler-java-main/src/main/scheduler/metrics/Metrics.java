@@ -0,0 +1,120 @@
+package scheduler.metrics;
+
+import scheduler.util.Config;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Timings of every command and every database round trip, kept in memory for the stats command
+ * and registered as MXBeans (scheduler:type=Command,name=... and scheduler:type=Database) unless
+ * Jmx is turned off.
+ *
+ * A command is timed on the thread that runs it, and the database round trips made on that thread
+ * in the meantime are counted towards it. Round trips made by background work (write-behind,
+ * the waitlist, the archiver) only count towards the database totals.
+ */
+public class Metrics {
+
+    private static final Metrics INSTANCE = new Metrics(Config.getBoolean("Jmx", true));
+
+    private final boolean jmx;
+    private final ConcurrentNavigableMap<String, OperationStats> commands = new ConcurrentSkipListMap<>();
+    private final OperationStats database = new OperationStats("database");
+
+    // per thread: {round trips, 1 if the command failed} of the command running on it
+    private final ThreadLocal<long[]> current = ThreadLocal.withInitial(() -> new long[2]);
+
+    Metrics(boolean jmx) {
+        this.jmx = jmx;
+        register("scheduler:type=Database", database);
+    }
+
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    // Commands
+    public long startCommand() {
+        long[] state = current.get();
+        state[0] = 0;
+        state[1] = 0;
+        return System.nanoTime();
+    }
+
+    // start is what startCommand returned on this thread
+    public void endCommand(String command, long start) {
+        long elapsed = System.nanoTime() - start;
+        long[] state = current.get();
+        command(command).record(elapsed, state[1] != 0, state[0]);
+    }
+
+    // the command running on this thread reported an error to its user
+    public void commandFailed() {
+        current.get()[1] = 1;
+    }
+
+    private OperationStats command(String name) {
+        OperationStats stats = commands.get(name);
+        if (stats == null) {
+            OperationStats created = new OperationStats(name);
+            stats = commands.putIfAbsent(name, created);
+            if (stats == null) {
+                stats = created;
+                register("scheduler:type=Command,name=" + name, created);
+            }
+        }
+        return stats;
+    }
+
+    // Database
+    public void roundTrip(long nanos, boolean failed) {
+        database.record(nanos, failed, 1);
+        current.get()[0]++;
+    }
+
+    public Map<String, OperationStats> getCommands() {
+        return commands;
+    }
+
+    public OperationStats getDatabase() {
+        return database;
+    }
+
+    // one line per command and one for the database, for the stats command
+    public List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("%-26s %8s %6s %9s %9s %9s %9s %7s %9s",
+                "", "count", "errors", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "trips", "per sec"));
+        for (OperationStats stats : commands.values()) {
+            lines.add(line(stats));
+        }
+        lines.add(line(database));
+        return lines;
+    }
+
+    private static String line(OperationStats stats) {
+        return String.format("%-26s %8d %6d %9.3f %9.3f %9.3f %9.3f %7.1f %9.1f", stats.getName(), stats.getCount(),
+                stats.getErrorCount(), stats.getP50Micros() / 1000.0, stats.getP99Micros() / 1000.0,
+                stats.getP999Micros() / 1000.0, stats.getMaxMicros() / 1000.0, stats.getRoundTripsPerCall(),
+                stats.getCallsPerSecond());
+    }
+
+    private void register(String name, OperationStats stats) {
+        if (!jmx) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, new ObjectName(name));
+        } catch (JMException e) {
+            // monitoring is best effort; the stats command still has everything
+            System.out.println("Could not register " + name + " with JMX: " + e);
+        }
+    }
+}
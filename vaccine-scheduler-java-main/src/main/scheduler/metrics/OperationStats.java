@@ -0,0 +1,104 @@
+package scheduler.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency, throughput, errors and database round trips of one kind of operation: a command, or
+ * every statement sent to the database.
+ */
+public class OperationStats implements OperationStatsMXBean {
+
+    private final String name;
+    private final long createdAt = System.nanoTime();
+    private final Histogram latency = new Histogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder roundTrips = new LongAdder();
+
+    OperationStats(String name) {
+        this.name = name;
+    }
+
+    void record(long nanos, boolean failed, long roundTrips) {
+        latency.record(nanos);
+        if (failed) {
+            errors.increment();
+        }
+        this.roundTrips.add(roundTrips);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getRoundTrips() {
+        return roundTrips.sum();
+    }
+
+    @Override
+    public double getRoundTripsPerCall() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) roundTrips.sum() / count;
+    }
+
+    // since the first call, on average
+    @Override
+    public double getCallsPerSecond() {
+        double seconds = (System.nanoTime() - createdAt) / 1e9;
+        return seconds <= 0 ? 0 : getCount() / seconds;
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return latency.getMean() / 1000;
+    }
+
+    @Override
+    public long getP50Micros() {
+        return micros(latency.getValueAtPercentile(50));
+    }
+
+    @Override
+    public long getP99Micros() {
+        return micros(latency.getValueAtPercentile(99));
+    }
+
+    @Override
+    public long getP999Micros() {
+        return micros(latency.getValueAtPercentile(99.9));
+    }
+
+    @Override
+    public long getMaxMicros() {
+        return micros(latency.getMax());
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    @Override
+    public String toString() {
+        return "OperationStats{" +
+                "name=" + name +
+                ", count=" + getCount() +
+                ", errors=" + getErrorCount() +
+                ", roundTrips=" + getRoundTrips() +
+                ", p50Micros=" + getP50Micros() +
+                ", p99Micros=" + getP99Micros() +
+                ", p999Micros=" + getP999Micros() +
+                ", maxMicros=" + getMaxMicros() +
+                '}';
+    }
+}
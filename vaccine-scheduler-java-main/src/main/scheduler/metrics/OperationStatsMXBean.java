@@ -0,0 +1,28 @@
+package scheduler.metrics;
+
+/**
+ * What JMX clients see of one command's or the database's {@link OperationStats}. Latencies are in
+ * microseconds.
+ */
+public interface OperationStatsMXBean {
+
+    long getCount();
+
+    long getErrorCount();
+
+    long getRoundTrips();
+
+    double getRoundTripsPerCall();
+
+    double getCallsPerSecond();
+
+    double getMeanMicros();
+
+    long getP50Micros();
+
+    long getP99Micros();
+
+    long getP999Micros();
+
+    long getMaxMicros();
+}
@@ -0,0 +1,78 @@
+package scheduler.model;
+
+import scheduler.storage.Storage;
+
+import java.sql.Date;
+import java.sql.SQLException;
+
+public class Appointment {
+    private final int id;
+    private final Date time;
+    private final String caregiverName;
+    private final String vaccineName;
+    private final String patientName;
+
+    private Appointment(AppointmentBuilder builder) {
+        this.id = builder.id;
+        this.time = builder.time;
+        this.caregiverName = builder.caregiverName;
+        this.vaccineName = builder.vaccineName;
+        this.patientName = builder.patientName;
+    }
+
+    // Getters
+    public int getId() {
+        return id;
+    }
+
+    public Date getTime() {
+        return time;
+    }
+
+    public String getCaregiverName() {
+        return caregiverName;
+    }
+
+    public String getVaccineName() {
+        return vaccineName;
+    }
+
+    public String getPatientName() {
+        return patientName;
+    }
+
+    public void saveToDB() throws SQLException {
+        Storage.get().addAppointment(this);
+    }
+
+    @Override
+    public String toString() {
+        return "Appointment{" +
+                "id=" + id +
+                ", time=" + time +
+                ", caregiverName='" + caregiverName + '\'' +
+                ", vaccineName='" + vaccineName + '\'' +
+                ", patientName='" + patientName + '\'' +
+                '}';
+    }
+
+    public static class AppointmentBuilder {
+        private final int id;
+        private final Date time;
+        private final String caregiverName;
+        private final String vaccineName;
+        private final String patientName;
+
+        public AppointmentBuilder(int id, Date time, String caregiverName, String vaccineName, String patientName) {
+            this.id = id;
+            this.time = time;
+            this.caregiverName = caregiverName;
+            this.vaccineName = vaccineName;
+            this.patientName = patientName;
+        }
+
+        public Appointment build() {
+            return new Appointment(this);
+        }
+    }
+}
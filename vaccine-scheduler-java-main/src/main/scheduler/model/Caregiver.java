@@ -1,12 +1,28 @@
 package scheduler.model;
 
-import scheduler.db.ConnectionManager;
-import scheduler.util.Util;
-
-import java.sql.*;
-import java.util.Arrays;
+import scheduler.storage.Credentials;
+import scheduler.storage.Slot;
+import scheduler.storage.Storage;
+import scheduler.util.Config;
+import scheduler.util.HashingService;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
 public class Caregiver {
+    // caregivers already loaded or created, by username
+    static final IdentityMap<String, Caregiver> LOADED = new IdentityMap<>("Caregivers", Config.getInt("ModelCacheSize", 10000));
+
+    // hits, misses and evictions of the loaded instances, for the stats command
+    public static String cacheStats() {
+        return LOADED.toString();
+    }
+
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
@@ -37,38 +53,25 @@ public class Caregiver {
     }
 
     public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addCaregiver = "INSERT INTO Caregivers VALUES (? , ?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addCaregiver);
-            statement.setString(1, this.username);
-            statement.setBytes(2, this.salt);
-            statement.setBytes(3, this.hash);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+        Storage.get().createCaregiver(this.username, this.salt, this.hash);
+        LOADED.put(this.username, this);
     }
 
     public void uploadAvailability(Date d) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addAvailability = "INSERT INTO Availabilities VALUES (? , ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addAvailability);
-            statement.setDate(1, d);
-            statement.setString(2, this.username);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+        Storage.get().addAvailability(d, this.username);
+    }
+
+    // adds every date from from to to (inclusive) that falls on one of the given days of the week,
+    // in one batch; dates the caregiver is already available or booked on are skipped. Returns how
+    // many were added.
+    public int uploadAvailability(Date from, Date to, Set<DayOfWeek> days) throws SQLException {
+        List<Slot> slots = new ArrayList<>();
+        for (LocalDate day = from.toLocalDate(); !day.isAfter(to.toLocalDate()); day = day.plusDays(1)) {
+            if (days.contains(day.getDayOfWeek())) {
+                slots.add(new Slot(Date.valueOf(day), this.username));
+            }
         }
+        return Storage.get().addAvailabilities(slots);
     }
 
     public static class CaregiverBuilder {
@@ -99,34 +102,32 @@ public class Caregiver {
         }
 
         public Caregiver get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
-
-            String getCaregiver = "SELECT Salt, Hash FROM Caregivers WHERE Username = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getCaregiver);
-                statement.setString(1, this.username);
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    byte[] salt = resultSet.getBytes("Salt");
-                    // we need to call Util.trim() to get rid of the paddings,
-                    // try to remove the use of Util.trim() and you'll see :)
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
-                    // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
-                        return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        return new Caregiver(this);
-                    }
+            // a caregiver that is already loaded is checked against its cached salt and hash
+            Caregiver loaded = LOADED.get(this.username);
+            byte[] salt;
+            byte[] storedHash;
+            if (loaded != null) {
+                salt = loaded.salt;
+                storedHash = loaded.hash;
+            } else {
+                Credentials credentials = Storage.get().getCaregiverCredentials(this.username);
+                if (credentials == null) {
+                    return null;
                 }
+                salt = credentials.getSalt();
+                storedHash = credentials.getHash();
+            }
+            // check if the password matches; the stored hash comes back padded with zeros, which
+            // HashingService.matches ignores
+            byte[] calculatedHash = HashingService.get().hash(password, salt);
+            if (!HashingService.matches(storedHash, calculatedHash)) {
                 return null;
-            } catch (SQLException e) {
-                throw new SQLException();
-            } finally {
-                cm.closeConnection();
+            } else if (loaded != null) {
+                return loaded;
+            } else {
+                this.salt = salt;
+                this.hash = calculatedHash;
+                return LOADED.putIfAbsent(this.username, new Caregiver(this));
             }
         }
     }
@@ -0,0 +1,91 @@
+package scheduler.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The model objects already loaded, one instance per key, so that looking up the same patient,
+ * caregiver or vaccine again returns that instance instead of reading the table.
+ *
+ * Bounded: once more than capacity objects are held the least recently used one is dropped, and
+ * is simply loaded again the next time it is asked for.
+ */
+class IdentityMap<K, V> {
+
+    private final String name;
+    private final Map<K, V> objects;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    IdentityMap(String name, int capacity) {
+        this.name = name;
+        this.objects = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                if (size() <= capacity) {
+                    return false;
+                }
+                evictions.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+    // returns null if the object is not loaded
+    synchronized V get(K key) {
+        V value = objects.get(key);
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    // returns the instance that is in the map afterwards, which is an existing one if there was one
+    synchronized V putIfAbsent(K key, V value) {
+        V existing = objects.putIfAbsent(key, value);
+        return existing == null ? value : existing;
+    }
+
+    synchronized void put(K key, V value) {
+        objects.put(key, value);
+    }
+
+    synchronized void remove(K key) {
+        objects.remove(key);
+    }
+
+    synchronized void clear() {
+        objects.clear();
+    }
+
+    synchronized int size() {
+        return objects.size();
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "IdentityMap{" +
+                "name=" + name +
+                ", size=" + size() +
+                ", hits=" + hits.get() +
+                ", misses=" + misses.get() +
+                ", evictions=" + evictions.get() +
+                '}';
+    }
+}
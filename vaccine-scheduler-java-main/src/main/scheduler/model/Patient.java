@@ -1,12 +1,21 @@
 package scheduler.model;
 
-import scheduler.db.ConnectionManager;
-import scheduler.util.Util;
+import scheduler.storage.Credentials;
+import scheduler.storage.Storage;
+import scheduler.util.Config;
+import scheduler.util.HashingService;
 
-import java.sql.*;
-import java.util.Arrays;
+import java.sql.SQLException;
 
 public class Patient {
+    // patients already loaded or created, by username
+    static final IdentityMap<String, Patient> LOADED = new IdentityMap<>("Patients", Config.getInt("ModelCacheSize", 10000));
+
+    // hits, misses and evictions of the loaded instances, for the stats command
+    public static String cacheStats() {
+        return LOADED.toString();
+    }
+
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
@@ -37,21 +46,8 @@ public class Patient {
     }
 
     public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addPatient = "INSERT INTO Patients VALUES (? , ?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addPatient);
-            statement.setString(1, this.username);
-            statement.setBytes(2, this.salt);
-            statement.setBytes(3, this.hash);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+        Storage.get().createPatient(this.username, this.salt, this.hash);
+        LOADED.put(this.username, this);
     }
 
     public static class PatientBuilder {
@@ -82,34 +78,32 @@ public class Patient {
         }
 
         public Patient get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
-
-            String getPatient = "SELECT Salt, Hash FROM Patients WHERE Username = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getPatient);
-                statement.setString(1, this.username);
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    byte[] salt = resultSet.getBytes("Salt");
-                    // we need to call Util.trim() to get rid of the paddings,
-                    // try to remove the use of Util.trim() and you'll see :)
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
-                    // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
-                        return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        return new Patient(this);
-                    }
+            // a patient that is already loaded is checked against its cached salt and hash
+            Patient loaded = LOADED.get(this.username);
+            byte[] salt;
+            byte[] storedHash;
+            if (loaded != null) {
+                salt = loaded.salt;
+                storedHash = loaded.hash;
+            } else {
+                Credentials credentials = Storage.get().getPatientCredentials(this.username);
+                if (credentials == null) {
+                    return null;
                 }
+                salt = credentials.getSalt();
+                storedHash = credentials.getHash();
+            }
+            // check if the password matches; the stored hash comes back padded with zeros, which
+            // HashingService.matches ignores
+            byte[] calculatedHash = HashingService.get().hash(password, salt);
+            if (!HashingService.matches(storedHash, calculatedHash)) {
                 return null;
-            } catch (SQLException e) {
-                throw new SQLException();
-            } finally {
-                cm.closeConnection();
+            } else if (loaded != null) {
+                return loaded;
+            } else {
+                this.salt = salt;
+                this.hash = calculatedHash;
+                return LOADED.putIfAbsent(this.username, new Patient(this));
             }
         }
     }
@@ -1,15 +1,22 @@
 package scheduler.model;
 
-import scheduler.db.ConnectionManager;
+import scheduler.storage.Storage;
+import scheduler.util.Config;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 
 public class Vaccine {
+    // vaccines already loaded or created, by name; the doses they hold are only as fresh as the
+    // last change made through them, so anything that changes doses elsewhere calls evict
+    static final IdentityMap<String, Vaccine> LOADED = new IdentityMap<>("Vaccines", Config.getInt("ModelCacheSize", 10000));
+
+    // hits, misses and evictions of the loaded instances, for the stats command
+    public static String cacheStats() {
+        return LOADED.toString();
+    }
+
     private final String vaccineName;
-    private int availableDoses;
+    private volatile int availableDoses;
 
     private Vaccine(VaccineBuilder builder) {
         this.vaccineName = builder.vaccineName;
@@ -31,20 +38,17 @@ public class Vaccine {
     }
 
     public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addDoses = "INSERT INTO vaccines VALUES (?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addDoses);
-            statement.setString(1, this.vaccineName);
-            statement.setInt(2, this.availableDoses);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+        Storage.get().addVaccine(this.vaccineName, this.availableDoses);
+        LOADED.put(this.vaccineName, this);
+    }
+
+    // drops the loaded instance, e.g. after a reservation took one of its doses
+    public static void evict(String vaccineName) {
+        LOADED.remove(vaccineName);
+    }
+
+    public static void evictAll() {
+        LOADED.clear();
     }
 
     // Increment the available doses
@@ -52,43 +56,27 @@ public class Vaccine {
         if (num <= 0) {
             throw new IllegalArgumentException("Argument cannot be negative!");
         }
-        this.availableDoses += num;
-
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
-        try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+        // the table is updated relative to its current value so concurrent changes are not lost
+        if (!Storage.get().adjustDoses(this.vaccineName, num)) {
+            // the row is gone, so this instance no longer stands for anything in the table
+            evict(this.vaccineName);
+            throw new SQLException("Vaccine " + this.vaccineName + " does not exist.");
+        }
+        synchronized (this) {
+            this.availableDoses += num;
         }
     }
 
     // Decrement the available doses
     public void decreaseAvailableDoses(int num) throws SQLException {
-        if (this.availableDoses - num < 0) {
+        if (num <= 0) {
+            throw new IllegalArgumentException("Argument cannot be negative!");
+        }
+        if (!Storage.get().adjustDoses(this.vaccineName, -num)) {
             throw new IllegalArgumentException("Not enough available doses!");
         }
-        this.availableDoses -= num;
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
-        try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+        synchronized (this) {
+            this.availableDoses -= num;
         }
     }
 
@@ -123,24 +111,16 @@ public class Vaccine {
         }
 
         public Vaccine get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
-
-            String getVaccine = "SELECT Name, Doses FROM Vaccines WHERE Name = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getVaccine);
-                statement.setString(1, this.vaccineName);
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    this.availableDoses = resultSet.getInt("Doses");
-                    return new Vaccine(this);
-                }
+            Vaccine loaded = LOADED.get(this.vaccineName);
+            if (loaded != null) {
+                return loaded;
+            }
+            Integer doses = Storage.get().getDoses(this.vaccineName);
+            if (doses == null) {
                 return null;
-            } catch (SQLException e) {
-                throw new SQLException();
-            } finally {
-                cm.closeConnection();
             }
+            this.availableDoses = doses;
+            return LOADED.putIfAbsent(this.vaccineName, new Vaccine(this));
         }
     }
 }
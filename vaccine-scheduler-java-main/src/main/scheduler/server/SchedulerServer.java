@@ -0,0 +1,126 @@
+package scheduler.server;
+
+import scheduler.Scheduler;
+import scheduler.Session;
+import scheduler.Waitlist;
+import scheduler.util.Config;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the scheduler's commands to many clients at once over TCP.
+ *
+ * The protocol is the REPL's: the client sends one command per line and gets back the same output
+ * the REPL would print, followed by a "> " prompt. Every connection has its own Session, so each
+ * client logs in and out independently. A client is disconnected after "quit" or after sitting
+ * idle for ServerIdleTimeoutMillis.
+ */
+public class SchedulerServer {
+
+    private final int port;
+    private final int idleTimeoutMillis;
+    private final ExecutorService sessions;
+    private final AtomicInteger connected = new AtomicInteger();
+    private volatile ServerSocket serverSocket;
+
+    public SchedulerServer(int port) {
+        this.port = port;
+        this.idleTimeoutMillis = Config.getInt("ServerIdleTimeoutMillis", 30 * 60 * 1000);
+        this.sessions = newSessionExecutor();
+    }
+
+    // one virtual thread per session when the runtime has them (Java 21+), otherwise a plain thread
+    // per session; most sessions spend their time blocked on a read, which virtual threads make cheap
+    private static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "session-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public void run() throws IOException {
+        try (ServerSocket server = new ServerSocket(port)) {
+            serverSocket = server;
+            System.out.println("Scheduler server listening on port " + server.getLocalPort());
+            while (!server.isClosed()) {
+                Socket client;
+                try {
+                    client = server.accept();
+                } catch (SocketException e) {
+                    // the server socket was closed by stop()
+                    break;
+                }
+                sessions.execute(() -> serve(client));
+            }
+        } finally {
+            sessions.shutdownNow();
+        }
+    }
+
+    public void stop() throws IOException {
+        ServerSocket server = serverSocket;
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    public int getConnectedCount() {
+        return connected.get();
+    }
+
+    private void serve(Socket client) {
+        connected.incrementAndGet();
+        Session session = null;
+        try (Socket socket = client;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintStream out = new PrintStream(socket.getOutputStream(), true, StandardCharsets.UTF_8)) {
+            socket.setSoTimeout(idleTimeoutMillis);
+            socket.setTcpNoDelay(true);
+
+            session = new Session(out);
+            Scheduler.printGreeting(out);
+            while (true) {
+                out.print("> ");
+                out.flush();
+                String line = in.readLine();
+                if (line == null) {
+                    break;
+                }
+                try {
+                    if (!Scheduler.execute(session, line.trim())) {
+                        break;
+                    }
+                } catch (RuntimeException e) {
+                    // a command that fails unexpectedly costs the client that command, not its session
+                    e.printStackTrace();
+                    session.println("Please try again!");
+                }
+            }
+        } catch (IOException e) {
+            // the client went away or timed out; its session simply ends
+        } finally {
+            if (session != null) {
+                // nobody is left to tell about a booking, and the entries would otherwise pile up
+                Waitlist.get().leaveAll(session);
+            }
+            connected.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package scheduler.storage;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * The Availabilities table, held in memory as date -> caregiver usernames in sorted order.
+ *
+ * Reads never touch the database. Changes are applied here first and written to the table in
+ * the background: every changed slot is remembered with the state it should end up in (present or
+ * absent), so repeated changes to the same slot collapse into one write, and pending slots are
+ * flushed in batches every flush interval, or sooner once a batch worth has piled up.
+ *
+ * The index also remembers which slots are booked, or claimed by a booking in progress, so an
+ * upload never offers a caregiver again on a date they already have an appointment. Claims and
+ * uploads for a date lock that date's set of caregivers.
+ *
+ * The index assumes this process is the only one writing Availabilities and Appointments.
+ */
+class AvailabilityIndex {
+
+    private final StorageEngine store;
+    private final int batchSize;
+    private final ConcurrentNavigableMap<Date, NavigableSet<String>> slots = new ConcurrentSkipListMap<>();
+    private final ConcurrentNavigableMap<Date, Set<String>> booked = new ConcurrentSkipListMap<>();
+    // slot -> whether it should exist in the table once written
+    private final ConcurrentMap<Slot, Boolean> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    AvailabilityIndex(StorageEngine store, long flushMillis, int batchSize) {
+        this.store = store;
+        this.batchSize = batchSize;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "availability-write-behind");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void load() throws SQLException {
+        store.forEachAvailability(null, null, slot -> setOf(slot.getTime()).add(slot.getCaregiver()));
+        store.forEachAppointment(null, null, appointment -> book(appointment.getTime(), appointment.getCaregiverName()));
+    }
+
+    private NavigableSet<String> setOf(Date time) {
+        return slots.computeIfAbsent(time, t -> new ConcurrentSkipListSet<>());
+    }
+
+    private void book(Date time, String caregiver) {
+        booked.computeIfAbsent(time, t -> ConcurrentHashMap.newKeySet()).add(caregiver);
+    }
+
+    private void unbook(Date time, String caregiver) {
+        Set<String> usernames = booked.get(time);
+        if (usernames != null) {
+            usernames.remove(caregiver);
+        }
+    }
+
+    // Reads
+    boolean isBooked(Slot slot) {
+        Set<String> usernames = booked.get(slot.getTime());
+        return usernames != null && usernames.contains(slot.getCaregiver());
+    }
+
+    List<String> caregivers(Date time) {
+        NavigableSet<String> usernames = slots.get(time);
+        return usernames == null ? Collections.emptyList() : new ArrayList<>(usernames);
+    }
+
+    void forEach(Date from, Date to, Consumer<Slot> consumer) {
+        ConcurrentNavigableMap<Date, NavigableSet<String>> range = slots;
+        if (from != null) {
+            range = range.tailMap(from, true);
+        }
+        if (to != null) {
+            range = range.headMap(to, true);
+        }
+        for (Map.Entry<Date, NavigableSet<String>> entry : range.entrySet()) {
+            for (String caregiver : entry.getValue()) {
+                consumer.accept(new Slot(entry.getKey(), caregiver));
+            }
+        }
+    }
+
+    // Writes that are persisted in the background
+    // false if the caregiver is already available, or booked, at that time
+    boolean add(Slot slot) {
+        NavigableSet<String> usernames = setOf(slot.getTime());
+        synchronized (usernames) {
+            if (isBooked(slot) || !usernames.add(slot.getCaregiver())) {
+                return false;
+            }
+        }
+        markPending(slot, Boolean.TRUE);
+        return true;
+    }
+
+    // a slot that was written to the table by someone else, e.g. an import or a cancel
+    void addPersisted(Slot slot) {
+        setOf(slot.getTime()).add(slot.getCaregiver());
+    }
+
+    boolean remove(Slot slot) {
+        NavigableSet<String> usernames = slots.get(slot.getTime());
+        if (usernames == null || !usernames.remove(slot.getCaregiver())) {
+            return false;
+        }
+        markPending(slot, Boolean.FALSE);
+        return true;
+    }
+
+    // forgets every date before the given one, once those slots are being archived; their pending
+    // changes are still written
+    void dropBefore(Date before) {
+        slots.headMap(before, false).clear();
+        booked.headMap(before, false).clear();
+    }
+
+    // appointments stored without a claim, e.g. by an import
+    void booked(Slot slot) {
+        book(slot.getTime(), slot.getCaregiver());
+    }
+
+    // appointments that were cancelled; the slot can be uploaded again
+    void cancelled(Slot slot) {
+        unbook(slot.getTime(), slot.getCaregiver());
+    }
+
+    // Claiming: a claimed slot is out of the index but not yet removed from the table; the caller
+    // either confirms the claim once the booking is stored or releases the slot again
+    Slot claimFirst(Date from, Date to) {
+        for (Map.Entry<Date, NavigableSet<String>> entry : slots.subMap(from, true, to, true).entrySet()) {
+            String caregiver = claimFirst(entry.getKey(), entry.getValue());
+            if (caregiver != null) {
+                return new Slot(entry.getKey(), caregiver);
+            }
+        }
+        return null;
+    }
+
+    private String claimFirst(Date time, NavigableSet<String> usernames) {
+        // the slot counts as booked from the moment it is claimed, so an upload cannot offer it again
+        synchronized (usernames) {
+            String caregiver = usernames.pollFirst();
+            if (caregiver != null) {
+                book(time, caregiver);
+            }
+            return caregiver;
+        }
+    }
+
+    void confirmClaim(Slot slot) {
+        markPending(slot, Boolean.FALSE);
+    }
+
+    void releaseClaim(Slot slot) {
+        NavigableSet<String> usernames = setOf(slot.getTime());
+        synchronized (usernames) {
+            unbook(slot.getTime(), slot.getCaregiver());
+            usernames.add(slot.getCaregiver());
+        }
+    }
+
+    // Write-behind
+    private void markPending(Slot slot, Boolean present) {
+        pending.put(slot, present);
+        if (pending.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+            flusher.execute(this::flushQuietly);
+        }
+    }
+
+    int pendingCount() {
+        return pending.size();
+    }
+
+    // writes every pending change to the table, one batch at a time
+    synchronized void flush() throws SQLException {
+        flushRequested.set(false);
+        while (!pending.isEmpty()) {
+            List<Map.Entry<Slot, Boolean>> batch = new ArrayList<>(batchSize);
+            List<Slot> added = new ArrayList<>();
+            List<Slot> removed = new ArrayList<>();
+            for (Map.Entry<Slot, Boolean> entry : pending.entrySet()) {
+                batch.add(Map.entry(entry.getKey(), entry.getValue()));
+                (entry.getValue() ? added : removed).add(entry.getKey());
+                if (batch.size() >= batchSize) {
+                    break;
+                }
+            }
+            try {
+                store.removeAvailabilities(removed);
+                store.addAvailabilities(added);
+            } catch (SQLException e) {
+                if (e.getErrorCode() != SqlErrors.FOREIGN_KEY) {
+                    throw e;
+                }
+                writeOneByOne(added);
+            }
+            // a slot changed again while the batch was written stays pending with its newer state
+            for (Map.Entry<Slot, Boolean> entry : batch) {
+                pending.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    // a slot whose caregiver does not exist would fail every batch it is in; write the slots one at
+    // a time and drop the ones the table rejects so the rest still get written
+    private void writeOneByOne(List<Slot> added) throws SQLException {
+        for (Slot slot : added) {
+            try {
+                store.addAvailabilities(Collections.singletonList(slot));
+            } catch (SQLException e) {
+                if (e.getErrorCode() != SqlErrors.FOREIGN_KEY) {
+                    throw e;
+                }
+                System.out.println("Dropping availability " + slot + ": unknown caregiver");
+                NavigableSet<String> usernames = slots.get(slot.getTime());
+                if (usernames != null) {
+                    usernames.remove(slot.getCaregiver());
+                }
+            }
+        }
+    }
+
+    // stops the background flushes and writes what is still pending; called once, at exit
+    void close() throws SQLException {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (SQLException e) {
+            // the changes stay pending and are retried on the next flush
+            System.out.println("Error occurred when writing availabilities, will retry");
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package scheduler.storage;
+
+import scheduler.model.Appointment;
+import scheduler.util.Config;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Serves caregiver availability from an in-memory {@link AvailabilityIndex} and vaccine doses from
+ * a {@link DoseInventory} in front of another engine, and writes changes to both in the background.
+ *
+ * Reserving takes a dose from the inventory and claims a slot from the index, then asks the
+ * underlying engine to store the appointment for that slot; if the booking fails the dose and the
+ * slot are put back. Everything else goes straight to the underlying engine.
+ */
+public class CachingStorageEngine implements StorageEngine {
+
+    private final StorageEngine store;
+    private final AvailabilityIndex availability;
+    private final DoseInventory doses;
+
+    public CachingStorageEngine(StorageEngine store) throws SQLException {
+        this.store = store;
+        this.availability = new AvailabilityIndex(store,
+                Config.getLong("AvailabilityFlushMillis", 200),
+                Config.getInt("AvailabilityFlushBatch", 500));
+        availability.load();
+        this.doses = new DoseInventory(store,
+                Config.getInt("DoseStripes", 8),
+                Config.getLong("DoseFlushMillis", 200),
+                Config.getInt("DoseFlushThreshold", 100));
+        doses.load();
+    }
+
+    // writes pending availability and dose changes now instead of waiting for the next flush
+    public void flush() throws SQLException {
+        availability.flush();
+        doses.flush();
+    }
+
+    // slots first, then doses; Storage shuts the connection pool down only after this returns
+    @Override
+    public void close() throws SQLException {
+        try {
+            availability.close();
+        } finally {
+            doses.close();
+        }
+    }
+
+    @Override
+    public void createPatient(String username, byte[] salt, byte[] hash) throws SQLException {
+        store.createPatient(username, salt, hash);
+    }
+
+    @Override
+    public void createCaregiver(String username, byte[] salt, byte[] hash) throws SQLException {
+        store.createCaregiver(username, salt, hash);
+    }
+
+    @Override
+    public Credentials getPatientCredentials(String username) throws SQLException {
+        return store.getPatientCredentials(username);
+    }
+
+    @Override
+    public Credentials getCaregiverCredentials(String username) throws SQLException {
+        return store.getCaregiverCredentials(username);
+    }
+
+    @Override
+    public boolean patientExists(String username) throws SQLException {
+        return store.patientExists(username);
+    }
+
+    @Override
+    public boolean caregiverExists(String username) throws SQLException {
+        return store.caregiverExists(username);
+    }
+
+    @Override
+    public Set<String> existingPatients(List<String> usernames) throws SQLException {
+        return store.existingPatients(usernames);
+    }
+
+    @Override
+    public void forEachPatient(Consumer<String> consumer) throws SQLException {
+        store.forEachPatient(consumer);
+    }
+
+    @Override
+    public void forEachCaregiver(Consumer<String> consumer) throws SQLException {
+        store.forEachCaregiver(consumer);
+    }
+
+    @Override
+    public void addAvailability(Date time, String caregiver) throws SQLException {
+        Slot slot = new Slot(time, caregiver);
+        if (!availability.add(slot)) {
+            throw availability.isBooked(slot) ? SqlErrors.slotBooked(time, caregiver)
+                    : SqlErrors.duplicateKey("Availabilities", time + ", " + caregiver);
+        }
+    }
+
+    @Override
+    public List<String> getAvailableCaregivers(Date time) {
+        return availability.caregivers(time);
+    }
+
+    @Override
+    public boolean removeAvailability(Date time, String caregiver) {
+        return availability.remove(new Slot(time, caregiver));
+    }
+
+    @Override
+    public void forEachAvailability(Date from, Date to, Consumer<Slot> consumer) {
+        availability.forEach(from, to, consumer);
+    }
+
+    @Override
+    public int addAvailabilities(List<Slot> slots) {
+        int added = 0;
+        for (Slot slot : slots) {
+            if (availability.add(slot)) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    @Override
+    public int removeAvailabilities(List<Slot> slots) {
+        int removed = 0;
+        for (Slot slot : slots) {
+            if (availability.remove(slot)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public void addVaccine(String name, int doses) throws SQLException {
+        store.addVaccine(name, doses);
+        this.doses.register(name, doses);
+    }
+
+    @Override
+    public Integer getDoses(String name) {
+        return doses.available(name);
+    }
+
+    @Override
+    public Map<String, Integer> getVaccines() {
+        return doses.snapshot();
+    }
+
+    @Override
+    public void applyDoseDeltas(Map<String, Integer> deltas) {
+        for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+            if (delta.getValue() < 0) {
+                doses.take(delta.getKey(), -delta.getValue());
+            } else {
+                doses.release(delta.getKey(), delta.getValue());
+            }
+        }
+    }
+
+    @Override
+    public boolean adjustDoses(String name, int delta) {
+        if (!doses.contains(name)) {
+            return false;
+        }
+        if (delta < 0) {
+            return doses.take(name, -delta);
+        }
+        doses.release(name, delta);
+        return true;
+    }
+
+    @Override
+    public Reservation reserve(Date time, String vaccine, String patient) throws SQLException {
+        // the dose is checked first so a reservation fails the same way it does in the other engines
+        if (!doses.take(vaccine, 1)) {
+            return Reservation.failed(Reservation.Status.NO_DOSES);
+        }
+        Slot slot = availability.claimFirst(time, time);
+        if (slot == null) {
+            doses.release(vaccine, 1);
+            return Reservation.failed(Reservation.Status.NO_CAREGIVER);
+        }
+        return bookClaimed(Collections.singletonList(slot), Collections.singletonList(patient), vaccine).get(0);
+    }
+
+    @Override
+    public List<Reservation> reserveAll(List<String> patients, Date from, Date to, String vaccine)
+            throws SQLException {
+        // unknown patients are left out before anything is claimed, so they never use up a slot or
+        // a dose that a later patient in the list could have had
+        Set<String> known = store.existingPatients(patients);
+        List<Slot> claimed = new ArrayList<>();
+        List<String> claimants = new ArrayList<>();
+        Reservation shortage = null;
+        for (String patient : patients) {
+            if (!known.contains(patient)) {
+                continue;
+            }
+            if (!doses.take(vaccine, 1)) {
+                shortage = Reservation.failed(Reservation.Status.NO_DOSES);
+                break;
+            }
+            Slot slot = availability.claimFirst(from, to);
+            if (slot == null) {
+                doses.release(vaccine, 1);
+                shortage = Reservation.failed(Reservation.Status.NO_CAREGIVER);
+                break;
+            }
+            claimed.add(slot);
+            claimants.add(patient);
+        }
+        Iterator<Reservation> booked = claimed.isEmpty() ? Collections.emptyIterator()
+                : bookClaimed(claimed, claimants, vaccine).iterator();
+        List<Reservation> results = new ArrayList<>(patients.size());
+        for (String patient : patients) {
+            if (!known.contains(patient)) {
+                results.add(Reservation.failed(Reservation.Status.UNKNOWN_PATIENT));
+            } else if (booked.hasNext()) {
+                results.add(booked.next());
+            } else {
+                // every known patient after the first shortage fails the same way
+                results.add(shortage);
+            }
+        }
+        return results;
+    }
+
+    // stores appointments for slots that were already claimed and doses that were already taken
+    private List<Reservation> bookClaimed(List<Slot> claimed, List<String> patients, String vaccine)
+            throws SQLException {
+        List<Reservation> results;
+        try {
+            results = store.bookSlots(claimed, patients, vaccine, false);
+        } catch (SQLException | RuntimeException e) {
+            for (Slot slot : claimed) {
+                availability.releaseClaim(slot);
+            }
+            doses.release(vaccine, claimed.size());
+            throw e;
+        }
+        for (int i = 0; i < claimed.size(); i++) {
+            if (results.get(i).isReserved()) {
+                availability.confirmClaim(claimed.get(i));
+            } else {
+                availability.releaseClaim(claimed.get(i));
+                doses.release(vaccine, 1);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public List<Reservation> bookSlots(List<Slot> slots, List<String> patients, String vaccine, boolean takeDoses)
+            throws SQLException {
+        return store.bookSlots(slots, patients, vaccine, takeDoses);
+    }
+
+    @Override
+    public void addAppointment(Appointment appointment) throws SQLException {
+        store.addAppointment(appointment);
+        availability.booked(new Slot(appointment.getTime(), appointment.getCaregiverName()));
+    }
+
+    // the underlying engine puts the slots and doses back in the cancel's own transaction; the
+    // index and the inventory then take them over without writing them again
+    @Override
+    public List<Appointment> cancelAppointments(List<Integer> ids, String patient, String caregiver, boolean restore)
+            throws SQLException {
+        beforeCancel(restore);
+        return restore(store.cancelAppointments(ids, patient, caregiver, restore), restore);
+    }
+
+    @Override
+    public List<Appointment> cancelCaregiverAppointments(String caregiver, Date from, Date to, boolean restore)
+            throws SQLException {
+        beforeCancel(restore);
+        return restore(store.cancelCaregiverAppointments(caregiver, from, to, restore), restore);
+    }
+
+    // a booked slot's removal from the table may still be pending; it has to be written before the
+    // cancel puts the slot back, or it would delete the restored row afterwards
+    private void beforeCancel(boolean restore) throws SQLException {
+        if (restore) {
+            availability.flush();
+        }
+    }
+
+    private List<Appointment> restore(List<Appointment> cancelled, boolean restore) {
+        Map<String, Integer> released = new HashMap<>();
+        for (Appointment appointment : cancelled) {
+            Slot slot = new Slot(appointment.getTime(), appointment.getCaregiverName());
+            availability.cancelled(slot);
+            if (restore) {
+                availability.addPersisted(slot);
+                released.merge(appointment.getVaccineName(), 1, Integer::sum);
+            }
+        }
+        for (Map.Entry<String, Integer> vaccine : released.entrySet()) {
+            doses.restored(vaccine.getKey(), vaccine.getValue());
+        }
+        return cancelled;
+    }
+
+    @Override
+    public Appointment getAppointment(int id) throws SQLException {
+        return store.getAppointment(id);
+    }
+
+    @Override
+    public boolean deleteAppointment(int id) throws SQLException {
+        Appointment appointment = store.getAppointment(id);
+        if (!store.deleteAppointment(id)) {
+            return false;
+        }
+        if (appointment != null) {
+            availability.cancelled(new Slot(appointment.getTime(), appointment.getCaregiverName()));
+        }
+        return true;
+    }
+
+    @Override
+    public List<Appointment> getPatientAppointments(String patient) throws SQLException {
+        return store.getPatientAppointments(patient);
+    }
+
+    @Override
+    public List<Appointment> getCaregiverAppointments(String caregiver) throws SQLException {
+        return store.getCaregiverAppointments(caregiver);
+    }
+
+    @Override
+    public void forEachAppointment(Date from, Date to, Consumer<Appointment> consumer) throws SQLException {
+        store.forEachAppointment(from, to, consumer);
+    }
+
+    @Override
+    public int archiveAppointments(Date before, int limit) throws SQLException {
+        return store.archiveAppointments(before, limit);
+    }
+
+    @Override
+    public int archiveAvailabilities(Date before, int limit) throws SQLException {
+        // the index forgets the old dates first so nothing claims them while they move; pending
+        // changes are written first so the archive gets the slots the index last held
+        availability.dropBefore(before);
+        availability.flush();
+        return store.archiveAvailabilities(before, limit);
+    }
+
+    @Override
+    public List<Appointment> getArchivedPatientAppointments(String patient) throws SQLException {
+        return store.getArchivedPatientAppointments(patient);
+    }
+
+    @Override
+    public List<Appointment> getArchivedCaregiverAppointments(String caregiver) throws SQLException {
+        return store.getArchivedCaregiverAppointments(caregiver);
+    }
+
+    @Override
+    public boolean[] importPatients(Map<String, Credentials> accounts) throws SQLException {
+        return store.importPatients(accounts);
+    }
+
+    @Override
+    public boolean[] importCaregivers(Map<String, Credentials> accounts) throws SQLException {
+        return store.importCaregivers(accounts);
+    }
+
+    @Override
+    public boolean[] importVaccines(Map<String, Integer> vaccines) throws SQLException {
+        boolean[] inserted = store.importVaccines(vaccines);
+        int i = 0;
+        for (Map.Entry<String, Integer> vaccine : vaccines.entrySet()) {
+            if (inserted[i++]) {
+                doses.register(vaccine.getKey(), vaccine.getValue());
+            }
+        }
+        return inserted;
+    }
+
+    @Override
+    public boolean[] importAvailabilities(List<Slot> slots) throws SQLException {
+        // pending removals go first, or the table would still hold slots the index already dropped
+        availability.flush();
+        boolean[] inserted = store.importAvailabilities(slots);
+        for (int i = 0; i < slots.size(); i++) {
+            if (inserted[i]) {
+                availability.addPersisted(slots.get(i));
+            }
+        }
+        return inserted;
+    }
+
+    @Override
+    public boolean[] importAppointments(List<Appointment> appointments) throws SQLException {
+        boolean[] inserted = store.importAppointments(appointments);
+        for (int i = 0; i < appointments.size(); i++) {
+            if (inserted[i]) {
+                availability.booked(new Slot(appointments.get(i).getTime(), appointments.get(i).getCaregiverName()));
+            }
+        }
+        return inserted;
+    }
+}
@@ -0,0 +1,214 @@
+package scheduler.storage;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Available doses per vaccine, counted in memory and written to the Vaccines table in the background.
+ *
+ * Each vaccine's doses are split over several independently updated counters (stripes) so that
+ * concurrent reservations of a popular vaccine do not all compare-and-set the same word. A thread
+ * takes a dose from its own stripe and only looks at the others once that one is empty; no stripe
+ * ever goes below zero, so neither does the total.
+ *
+ * Every change is also added to the vaccine's pending delta. Deltas are written as
+ * "Doses = Doses + delta" every flush interval, or as soon as one vaccine's pending delta reaches
+ * the flush threshold, so many reservations cost one UPDATE. On startup the counters are loaded
+ * from the table, which makes it the reconciliation point after a restart.
+ */
+class DoseInventory {
+
+    // ints per stripe, so that two stripes never share a 64-byte cache line
+    private static final int PADDING = 16;
+
+    private final StorageEngine store;
+    private final int stripes;
+    private final int flushThreshold;
+    private final ConcurrentNavigableMap<String, Doses> vaccines = new ConcurrentSkipListMap<>();
+    private final ScheduledExecutorService flusher;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    DoseInventory(StorageEngine store, int stripes, long flushMillis, int flushThreshold) {
+        this.store = store;
+        this.stripes = stripes;
+        this.flushThreshold = flushThreshold;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dose-write-behind");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // replaces the counters with what the table holds; pending deltas are written first
+    synchronized void load() throws SQLException {
+        flush();
+        vaccines.clear();
+        for (Map.Entry<String, Integer> entry : store.getVaccines().entrySet()) {
+            vaccines.put(entry.getKey(), new Doses(stripes, entry.getValue()));
+        }
+    }
+
+    // a vaccine that was just inserted into the table with this many doses
+    void register(String name, int doses) {
+        vaccines.putIfAbsent(name, new Doses(stripes, doses));
+    }
+
+    boolean contains(String name) {
+        return vaccines.containsKey(name);
+    }
+
+    // returns null if there is no such vaccine
+    Integer available(String name) {
+        Doses doses = vaccines.get(name);
+        return doses == null ? null : doses.total();
+    }
+
+    Map<String, Integer> snapshot() {
+        Map<String, Integer> snapshot = new LinkedHashMap<>();
+        for (Map.Entry<String, Doses> entry : vaccines.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().total());
+        }
+        return snapshot;
+    }
+
+    // takes count doses, all or nothing
+    boolean take(String name, int count) {
+        Doses doses = vaccines.get(name);
+        if (doses == null) {
+            return false;
+        }
+        for (int taken = 0; taken < count; taken++) {
+            if (!doses.takeOne()) {
+                doses.add(taken);
+                return false;
+            }
+        }
+        changed(doses, -count);
+        return true;
+    }
+
+    void release(String name, int count) {
+        Doses doses = vaccines.get(name);
+        if (doses == null) {
+            return;
+        }
+        doses.add(count);
+        changed(doses, count);
+    }
+
+    // doses the table already got back, e.g. in a cancel's transaction; nothing is left to write
+    void restored(String name, int count) {
+        Doses doses = vaccines.get(name);
+        if (doses != null) {
+            doses.add(count);
+        }
+    }
+
+    private void changed(Doses doses, int delta) {
+        int pending = doses.pendingDelta.addAndGet(delta);
+        if (Math.abs(pending) >= flushThreshold && flushRequested.compareAndSet(false, true)) {
+            flusher.execute(this::flushQuietly);
+        }
+    }
+
+    // writes every vaccine's pending delta in one batch
+    synchronized void flush() throws SQLException {
+        flushRequested.set(false);
+        Map<String, Integer> deltas = new LinkedHashMap<>();
+        for (Map.Entry<String, Doses> entry : vaccines.entrySet()) {
+            int delta = entry.getValue().pendingDelta.getAndSet(0);
+            if (delta != 0) {
+                deltas.put(entry.getKey(), delta);
+            }
+        }
+        if (deltas.isEmpty()) {
+            return;
+        }
+        try {
+            store.applyDoseDeltas(deltas);
+        } catch (SQLException | RuntimeException e) {
+            // put the deltas back so the next flush writes them
+            for (Map.Entry<String, Integer> entry : deltas.entrySet()) {
+                Doses doses = vaccines.get(entry.getKey());
+                if (doses != null) {
+                    doses.pendingDelta.addAndGet(entry.getValue());
+                }
+            }
+            throw e;
+        }
+    }
+
+    // stops the background flushes and writes what is still pending; called once, at exit
+    void close() throws SQLException {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (SQLException e) {
+            System.out.println("Error occurred when writing doses, will retry");
+            e.printStackTrace();
+        }
+    }
+
+    private static class Doses {
+        private final AtomicIntegerArray counts;
+        private final int stripes;
+        final AtomicInteger pendingDelta = new AtomicInteger();
+
+        Doses(int stripes, int total) {
+            this.stripes = stripes;
+            this.counts = new AtomicIntegerArray(stripes * PADDING);
+            for (int i = 0; i < stripes; i++) {
+                counts.set(i * PADDING, total / stripes + (i < total % stripes ? 1 : 0));
+            }
+        }
+
+        private int home() {
+            return (int) (Thread.currentThread().getId() % stripes);
+        }
+
+        boolean takeOne() {
+            int home = home();
+            for (int i = 0; i < stripes; i++) {
+                int index = ((home + i) % stripes) * PADDING;
+                int current;
+                while ((current = counts.get(index)) > 0) {
+                    if (counts.compareAndSet(index, current, current - 1)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        void add(int count) {
+            counts.addAndGet(home() * PADDING, count);
+        }
+
+        int total() {
+            int total = 0;
+            for (int i = 0; i < stripes; i++) {
+                total += counts.get(i * PADDING);
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,558 @@
+package scheduler.storage;
+
+import scheduler.model.Appointment;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Keeps all five tables in concurrent maps inside this process.
+ *
+ * Nothing survives a restart. Primary keys and the foreign keys from create.sql are enforced, and
+ * violations are reported as SQLExceptions with the same SQL state and error codes SQL Server
+ * uses, so callers cannot tell the engines apart by how they fail.
+ */
+public class InMemoryStorageEngine implements StorageEngine {
+
+    private final ConcurrentMap<String, Credentials> patients = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Credentials> caregivers = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<Date, NavigableSet<String>> availabilities = new ConcurrentSkipListMap<>();
+    private final ConcurrentNavigableMap<String, AtomicInteger> vaccines = new ConcurrentSkipListMap<>();
+    private final ConcurrentNavigableMap<Integer, Appointment> appointments = new ConcurrentSkipListMap<>();
+    // date -> caregiver -> how many of the appointments above they have on it, so uploads can skip
+    // booked slots without scanning every appointment
+    private final ConcurrentNavigableMap<Date, ConcurrentMap<String, Integer>> booked = new ConcurrentSkipListMap<>();
+    private final AtomicInteger lastAppointmentId = new AtomicInteger();
+    private final ConcurrentNavigableMap<Integer, Appointment> archivedAppointments = new ConcurrentSkipListMap<>();
+    private final ConcurrentNavigableMap<Date, NavigableSet<String>> archivedAvailabilities = new ConcurrentSkipListMap<>();
+
+    @Override
+    public void createPatient(String username, byte[] salt, byte[] hash) throws SQLException {
+        if (patients.putIfAbsent(username, new Credentials(salt, hash)) != null) {
+            throw SqlErrors.duplicateKey("Patients", username);
+        }
+    }
+
+    @Override
+    public void createCaregiver(String username, byte[] salt, byte[] hash) throws SQLException {
+        if (caregivers.putIfAbsent(username, new Credentials(salt, hash)) != null) {
+            throw SqlErrors.duplicateKey("Caregivers", username);
+        }
+    }
+
+    @Override
+    public Credentials getPatientCredentials(String username) {
+        return patients.get(username);
+    }
+
+    @Override
+    public Credentials getCaregiverCredentials(String username) {
+        return caregivers.get(username);
+    }
+
+    @Override
+    public boolean patientExists(String username) {
+        return patients.containsKey(username);
+    }
+
+    @Override
+    public boolean caregiverExists(String username) {
+        return caregivers.containsKey(username);
+    }
+
+    @Override
+    public Set<String> existingPatients(List<String> usernames) {
+        Set<String> existing = new HashSet<>();
+        for (String username : usernames) {
+            if (patients.containsKey(username)) {
+                existing.add(username);
+            }
+        }
+        return existing;
+    }
+
+    @Override
+    public void forEachPatient(Consumer<String> consumer) {
+        patients.keySet().forEach(consumer);
+    }
+
+    @Override
+    public void forEachCaregiver(Consumer<String> consumer) {
+        caregivers.keySet().forEach(consumer);
+    }
+
+    @Override
+    public void addAvailability(Date time, String caregiver) throws SQLException {
+        if (!caregivers.containsKey(caregiver)) {
+            throw SqlErrors.foreignKey("Caregivers", caregiver);
+        }
+        NavigableSet<String> usernames = caregiversOn(time);
+        synchronized (usernames) {
+            if (usernames.contains(caregiver)) {
+                throw SqlErrors.duplicateKey("Availabilities", time + ", " + caregiver);
+            }
+            if (isBooked(time, caregiver)) {
+                throw SqlErrors.slotBooked(time, caregiver);
+            }
+            usernames.add(caregiver);
+        }
+    }
+
+    private NavigableSet<String> caregiversOn(Date time) {
+        return availabilities.computeIfAbsent(time, t -> new ConcurrentSkipListSet<>());
+    }
+
+    // the caller holds the lock on the date's caregivers, which reservations for that date also
+    // take, so no booking can land between this check and the add that follows it
+    private boolean isBooked(Date time, String caregiver) {
+        Map<String, Integer> usernames = booked.get(time);
+        return usernames != null && usernames.containsKey(caregiver);
+    }
+
+    // every appointment put into or taken out of the appointments map goes through these
+    private void book(Appointment appointment) {
+        booked.computeIfAbsent(appointment.getTime(), t -> new ConcurrentHashMap<>())
+                .merge(appointment.getCaregiverName(), 1, Integer::sum);
+    }
+
+    private void unbook(Appointment appointment) {
+        Map<String, Integer> usernames = booked.get(appointment.getTime());
+        if (usernames != null) {
+            usernames.computeIfPresent(appointment.getCaregiverName(), (caregiver, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    @Override
+    public List<String> getAvailableCaregivers(Date time) {
+        NavigableSet<String> usernames = availabilities.get(time);
+        return usernames == null ? Collections.emptyList() : new ArrayList<>(usernames);
+    }
+
+    @Override
+    public boolean removeAvailability(Date time, String caregiver) {
+        NavigableSet<String> usernames = availabilities.get(time);
+        return usernames != null && usernames.remove(caregiver);
+    }
+
+    @Override
+    public void forEachAvailability(Date from, Date to, Consumer<Slot> consumer) {
+        ConcurrentNavigableMap<Date, NavigableSet<String>> range = availabilities;
+        if (from != null) {
+            range = range.tailMap(from, true);
+        }
+        if (to != null) {
+            range = range.headMap(to, true);
+        }
+        for (Map.Entry<Date, NavigableSet<String>> entry : range.entrySet()) {
+            for (String caregiver : entry.getValue()) {
+                consumer.accept(new Slot(entry.getKey(), caregiver));
+            }
+        }
+    }
+
+    @Override
+    public int addAvailabilities(List<Slot> slots) throws SQLException {
+        for (Slot slot : slots) {
+            if (!caregivers.containsKey(slot.getCaregiver())) {
+                throw SqlErrors.foreignKey("Caregivers", slot.getCaregiver());
+            }
+        }
+        int added = 0;
+        for (Slot slot : slots) {
+            NavigableSet<String> usernames = caregiversOn(slot.getTime());
+            synchronized (usernames) {
+                if (!usernames.contains(slot.getCaregiver()) && !isBooked(slot.getTime(), slot.getCaregiver())) {
+                    usernames.add(slot.getCaregiver());
+                    added++;
+                }
+            }
+        }
+        return added;
+    }
+
+    @Override
+    public int removeAvailabilities(List<Slot> slots) {
+        int removed = 0;
+        for (Slot slot : slots) {
+            if (removeAvailability(slot.getTime(), slot.getCaregiver())) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public void addVaccine(String name, int doses) throws SQLException {
+        if (vaccines.putIfAbsent(name, new AtomicInteger(doses)) != null) {
+            throw SqlErrors.duplicateKey("Vaccines", name);
+        }
+    }
+
+    @Override
+    public Integer getDoses(String name) {
+        AtomicInteger doses = vaccines.get(name);
+        return doses == null ? null : doses.get();
+    }
+
+    @Override
+    public Map<String, Integer> getVaccines() {
+        Map<String, Integer> snapshot = new LinkedHashMap<>();
+        for (Map.Entry<String, AtomicInteger> entry : vaccines.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return snapshot;
+    }
+
+    @Override
+    public void applyDoseDeltas(Map<String, Integer> deltas) {
+        for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+            AtomicInteger doses = vaccines.get(delta.getKey());
+            if (doses != null) {
+                doses.addAndGet(delta.getValue());
+            }
+        }
+    }
+
+    @Override
+    public boolean adjustDoses(String name, int delta) {
+        AtomicInteger doses = vaccines.get(name);
+        if (doses == null) {
+            return false;
+        }
+        while (true) {
+            int current = doses.get();
+            if (current + delta < 0) {
+                return false;
+            }
+            if (doses.compareAndSet(current, current + delta)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public Reservation reserve(Date time, String vaccine, String patient) throws SQLException {
+        if (!patients.containsKey(patient)) {
+            throw SqlErrors.foreignKey("Patients", patient);
+        }
+        if (!adjustDoses(vaccine, -1)) {
+            return Reservation.failed(Reservation.Status.NO_DOSES);
+        }
+        NavigableSet<String> usernames = availabilities.get(time);
+        Appointment appointment = usernames == null ? null : bookFirst(time, usernames, vaccine, patient);
+        if (appointment == null) {
+            adjustDoses(vaccine, 1);
+            return Reservation.failed(Reservation.Status.NO_CAREGIVER);
+        }
+        return Reservation.reserved(appointment);
+    }
+
+    // books the first available caregiver on the date, or returns null if there is none; the slot
+    // leaves the set and the appointment is stored under the lock uploads for that date take
+    private Appointment bookFirst(Date time, NavigableSet<String> usernames, String vaccine, String patient) {
+        synchronized (usernames) {
+            String caregiver = usernames.pollFirst();
+            if (caregiver == null) {
+                return null;
+            }
+            Appointment appointment = new Appointment.AppointmentBuilder(lastAppointmentId.incrementAndGet(), time,
+                    caregiver, vaccine, patient).build();
+            appointments.put(appointment.getId(), appointment);
+            book(appointment);
+            return appointment;
+        }
+    }
+
+    @Override
+    public synchronized List<Reservation> reserveAll(List<String> patients, Date from, Date to, String vaccine) {
+        // synchronized so the pass sees one consistent set of slots; single reservations can still
+        // run alongside it and simply win the slots they claim first
+        List<Reservation> results = new ArrayList<>(patients.size());
+        for (String patient : patients) {
+            if (!this.patients.containsKey(patient)) {
+                results.add(Reservation.failed(Reservation.Status.UNKNOWN_PATIENT));
+                continue;
+            }
+            if (!adjustDoses(vaccine, -1)) {
+                results.add(Reservation.failed(Reservation.Status.NO_DOSES));
+                continue;
+            }
+            Appointment appointment = null;
+            for (Map.Entry<Date, NavigableSet<String>> entry : availabilities.subMap(from, true, to, true).entrySet()) {
+                appointment = bookFirst(entry.getKey(), entry.getValue(), vaccine, patient);
+                if (appointment != null) {
+                    break;
+                }
+            }
+            if (appointment == null) {
+                adjustDoses(vaccine, 1);
+                results.add(Reservation.failed(Reservation.Status.NO_CAREGIVER));
+                continue;
+            }
+            results.add(Reservation.reserved(appointment));
+        }
+        return results;
+    }
+
+    @Override
+    public List<Reservation> bookSlots(List<Slot> slots, List<String> patients, String vaccine, boolean takeDoses) {
+        List<Reservation> results = new ArrayList<>(slots.size());
+        for (int i = 0; i < slots.size(); i++) {
+            String patient = patients.get(i);
+            if (!this.patients.containsKey(patient)) {
+                results.add(Reservation.failed(Reservation.Status.UNKNOWN_PATIENT));
+            } else if (takeDoses && !adjustDoses(vaccine, -1)) {
+                results.add(Reservation.failed(Reservation.Status.NO_DOSES));
+            } else {
+                Appointment appointment = new Appointment.AppointmentBuilder(lastAppointmentId.incrementAndGet(),
+                        slots.get(i).getTime(), slots.get(i).getCaregiver(), vaccine, patient).build();
+                appointments.put(appointment.getId(), appointment);
+                book(appointment);
+                results.add(Reservation.reserved(appointment));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public void addAppointment(Appointment appointment) throws SQLException {
+        if (!caregivers.containsKey(appointment.getCaregiverName())) {
+            throw SqlErrors.foreignKey("Caregivers", appointment.getCaregiverName());
+        }
+        if (!patients.containsKey(appointment.getPatientName())) {
+            throw SqlErrors.foreignKey("Patients", appointment.getPatientName());
+        }
+        if (!vaccines.containsKey(appointment.getVaccineName())) {
+            throw SqlErrors.foreignKey("Vaccines", appointment.getVaccineName());
+        }
+        if (appointments.putIfAbsent(appointment.getId(), appointment) != null) {
+            throw SqlErrors.duplicateKey("Appointments", String.valueOf(appointment.getId()));
+        }
+        book(appointment);
+        lastAppointmentId.accumulateAndGet(appointment.getId(), Math::max);
+    }
+
+    @Override
+    public List<Appointment> cancelAppointments(List<Integer> ids, String patient, String caregiver, boolean restore) {
+        List<Appointment> cancelled = new ArrayList<>();
+        for (Integer id : new LinkedHashSet<>(ids)) {
+            Appointment appointment = appointments.get(id);
+            if (appointment != null && (patient == null || appointment.getPatientName().equals(patient))
+                    && (caregiver == null || appointment.getCaregiverName().equals(caregiver))
+                    && appointments.remove(id, appointment)) {
+                cancelled.add(appointment);
+            }
+        }
+        return finishCancel(cancelled, restore);
+    }
+
+    @Override
+    public List<Appointment> cancelCaregiverAppointments(String caregiver, Date from, Date to, boolean restore) {
+        List<Appointment> cancelled = new ArrayList<>();
+        for (Appointment appointment : appointments.values()) {
+            if (appointment.getCaregiverName().equals(caregiver) && !appointment.getTime().before(from)
+                    && !appointment.getTime().after(to) && appointments.remove(appointment.getId(), appointment)) {
+                cancelled.add(appointment);
+            }
+        }
+        return finishCancel(cancelled, restore);
+    }
+
+    private List<Appointment> finishCancel(List<Appointment> cancelled, boolean restore) {
+        for (Appointment appointment : cancelled) {
+            unbook(appointment);
+        }
+        if (restore) {
+            for (Appointment appointment : cancelled) {
+                availabilities.computeIfAbsent(appointment.getTime(), t -> new ConcurrentSkipListSet<>())
+                        .add(appointment.getCaregiverName());
+                adjustDoses(appointment.getVaccineName(), 1);
+            }
+        }
+        cancelled.sort(Comparator.comparingInt(Appointment::getId));
+        return cancelled;
+    }
+
+    @Override
+    public Appointment getAppointment(int id) {
+        return appointments.get(id);
+    }
+
+    @Override
+    public boolean deleteAppointment(int id) {
+        Appointment appointment = appointments.remove(id);
+        if (appointment == null) {
+            return false;
+        }
+        unbook(appointment);
+        return true;
+    }
+
+    @Override
+    public List<Appointment> getPatientAppointments(String patient) {
+        List<Appointment> result = new ArrayList<>();
+        for (Appointment appointment : appointments.values()) {
+            if (appointment.getPatientName().equals(patient)) {
+                result.add(appointment);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<Appointment> getCaregiverAppointments(String caregiver) {
+        List<Appointment> result = new ArrayList<>();
+        for (Appointment appointment : appointments.values()) {
+            if (appointment.getCaregiverName().equals(caregiver)) {
+                result.add(appointment);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void forEachAppointment(Date from, Date to, Consumer<Appointment> consumer) {
+        // everything is in memory already, so collecting the range to sort it costs little more
+        for (Map<Integer, Appointment> table : List.of(archivedAppointments, appointments)) {
+            List<Appointment> result = new ArrayList<>();
+            for (Appointment appointment : table.values()) {
+                if ((from == null || !appointment.getTime().before(from)) && (to == null || !appointment.getTime().after(to))) {
+                    result.add(appointment);
+                }
+            }
+            result.sort(Comparator.comparing(Appointment::getTime).thenComparingInt(Appointment::getId));
+            result.forEach(consumer);
+        }
+    }
+
+    @Override
+    public int archiveAppointments(Date before, int limit) {
+        int moved = 0;
+        for (Appointment appointment : appointments.values()) {
+            if (moved >= limit) {
+                break;
+            }
+            // whoever removes the appointment moves it, so a concurrent cancel or archive run never
+            // leaves it in both maps
+            if (appointment.getTime().before(before) && appointments.remove(appointment.getId(), appointment)) {
+                archivedAppointments.put(appointment.getId(), appointment);
+                unbook(appointment);
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    @Override
+    public int archiveAvailabilities(Date before, int limit) {
+        int moved = 0;
+        for (Map.Entry<Date, NavigableSet<String>> entry : availabilities.headMap(before, false).entrySet()) {
+            String caregiver;
+            while (moved < limit && (caregiver = entry.getValue().pollFirst()) != null) {
+                archivedAvailabilities.computeIfAbsent(entry.getKey(), t -> new ConcurrentSkipListSet<>()).add(caregiver);
+                moved++;
+            }
+            if (moved >= limit) {
+                break;
+            }
+        }
+        return moved;
+    }
+
+    @Override
+    public List<Appointment> getArchivedPatientAppointments(String patient) {
+        List<Appointment> result = new ArrayList<>();
+        for (Appointment appointment : archivedAppointments.values()) {
+            if (appointment.getPatientName().equals(patient)) {
+                result.add(appointment);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<Appointment> getArchivedCaregiverAppointments(String caregiver) {
+        List<Appointment> result = new ArrayList<>();
+        for (Appointment appointment : archivedAppointments.values()) {
+            if (appointment.getCaregiverName().equals(caregiver)) {
+                result.add(appointment);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean[] importPatients(Map<String, Credentials> accounts) {
+        return importAccounts(patients, accounts);
+    }
+
+    @Override
+    public boolean[] importCaregivers(Map<String, Credentials> accounts) {
+        return importAccounts(caregivers, accounts);
+    }
+
+    private static boolean[] importAccounts(ConcurrentMap<String, Credentials> table, Map<String, Credentials> accounts) {
+        boolean[] inserted = new boolean[accounts.size()];
+        int i = 0;
+        for (Map.Entry<String, Credentials> account : accounts.entrySet()) {
+            inserted[i++] = table.putIfAbsent(account.getKey(), account.getValue()) == null;
+        }
+        return inserted;
+    }
+
+    @Override
+    public boolean[] importVaccines(Map<String, Integer> vaccines) {
+        boolean[] inserted = new boolean[vaccines.size()];
+        int i = 0;
+        for (Map.Entry<String, Integer> vaccine : vaccines.entrySet()) {
+            inserted[i++] = this.vaccines.putIfAbsent(vaccine.getKey(), new AtomicInteger(vaccine.getValue())) == null;
+        }
+        return inserted;
+    }
+
+    @Override
+    public boolean[] importAvailabilities(List<Slot> slots) {
+        boolean[] inserted = new boolean[slots.size()];
+        for (int i = 0; i < slots.size(); i++) {
+            Slot slot = slots.get(i);
+            inserted[i] = caregivers.containsKey(slot.getCaregiver())
+                    && availabilities.computeIfAbsent(slot.getTime(), t -> new ConcurrentSkipListSet<>()).add(slot.getCaregiver());
+        }
+        return inserted;
+    }
+
+    @Override
+    public boolean[] importAppointments(List<Appointment> appointments) {
+        boolean[] inserted = new boolean[appointments.size()];
+        for (int i = 0; i < appointments.size(); i++) {
+            if (archivedAppointments.containsKey(appointments.get(i).getId())) {
+                continue;
+            }
+            try {
+                addAppointment(appointments.get(i));
+                inserted[i] = true;
+            } catch (SQLException e) {
+                // a duplicate id or an unknown caregiver, vaccine or patient
+                inserted[i] = false;
+            }
+        }
+        return inserted;
+    }
+}
@@ -0,0 +1,1125 @@
+package scheduler.storage;
+
+import scheduler.db.AppointmentIdAllocator;
+import scheduler.db.ConnectionManager;
+import scheduler.model.Appointment;
+import scheduler.util.Config;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+// the SQL Server tables from create.sql, reached through the ConnectionManager pool
+public class JdbcStorageEngine implements StorageEngine {
+
+    // rows per round trip for the queries that stream large results, e.g. availability ranges
+    private static final int FETCH_SIZE = Config.getInt("FetchSize", 500);
+
+    private final AppointmentIdAllocator appointmentIds =
+            new AppointmentIdAllocator(Config.getInt("AppointmentIdBlockSize", 50));
+
+    // ConnectionManager reports a failed borrow by returning null
+    static Connection open(ConnectionManager cm) throws SQLException {
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("Could not get a database connection");
+        }
+        return con;
+    }
+
+    @Override
+    public void createPatient(String username, byte[] salt, byte[] hash) throws SQLException {
+        insertAccount("INSERT INTO Patients VALUES (? , ?, ?)", username, salt, hash);
+    }
+
+    @Override
+    public void createCaregiver(String username, byte[] salt, byte[] hash) throws SQLException {
+        insertAccount("INSERT INTO Caregivers VALUES (? , ?, ?)", username, salt, hash);
+    }
+
+    private void insertAccount(String sql, String username, byte[] salt, byte[] hash) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            PreparedStatement statement = con.prepareStatement(sql);
+            statement.setString(1, username);
+            statement.setBytes(2, salt);
+            statement.setBytes(3, hash);
+            statement.executeUpdate();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public Credentials getPatientCredentials(String username) throws SQLException {
+        return selectCredentials("SELECT Salt, Hash FROM Patients WHERE Username = ?", username);
+    }
+
+    @Override
+    public Credentials getCaregiverCredentials(String username) throws SQLException {
+        return selectCredentials("SELECT Salt, Hash FROM Caregivers WHERE Username = ?", username);
+    }
+
+    private Credentials selectCredentials(String sql, String username) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            PreparedStatement statement = con.prepareStatement(sql);
+            statement.setString(1, username);
+            ResultSet resultSet = statement.executeQuery();
+            if (resultSet.next()) {
+                return new Credentials(resultSet.getBytes("Salt"), resultSet.getBytes("Hash"));
+            }
+            return null;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public boolean patientExists(String username) throws SQLException {
+        return exists("SELECT 1 FROM Patients WHERE Username = ?", username);
+    }
+
+    @Override
+    public boolean caregiverExists(String username) throws SQLException {
+        return exists("SELECT 1 FROM Caregivers WHERE Username = ?", username);
+    }
+
+    @Override
+    public Set<String> existingPatients(List<String> usernames) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            return selectExistingPatients(con, usernames);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public void forEachPatient(Consumer<String> consumer) throws SQLException {
+        forEachUsername("SELECT Username FROM Patients", consumer);
+    }
+
+    @Override
+    public void forEachCaregiver(Consumer<String> consumer) throws SQLException {
+        forEachUsername("SELECT Username FROM Caregivers", consumer);
+    }
+
+    private void forEachUsername(String sql, Consumer<String> consumer) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            PreparedStatement statement = con.prepareStatement(sql);
+            statement.setFetchSize(FETCH_SIZE);
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                consumer.accept(resultSet.getString("Username"));
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private boolean exists(String sql, String username) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            PreparedStatement statement = con.prepareStatement(sql);
+            statement.setString(1, username);
+            ResultSet resultSet = statement.executeQuery();
+            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
+            return resultSet.isBeforeFirst();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public void addAvailability(Date time, String caregiver) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            // a date the caregiver is already booked on is not offered again
+            PreparedStatement statement = con.prepareStatement(
+                    "INSERT INTO Availabilities (Time, Username) SELECT ?, ? " +
+                    "WHERE NOT EXISTS (SELECT 1 FROM Appointments WHERE Time = ? AND Caregiver_name = ?)");
+            statement.setDate(1, time);
+            statement.setString(2, caregiver);
+            statement.setDate(3, time);
+            statement.setString(4, caregiver);
+            if (statement.executeUpdate() == 0) {
+                throw SqlErrors.slotBooked(time, caregiver);
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public List<String> getAvailableCaregivers(Date time) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            PreparedStatement statement = con.prepareStatement(
+                    "SELECT Username FROM Availabilities WHERE Time = ? ORDER BY Username");
+            statement.setDate(1, time);
+            ResultSet resultSet = statement.executeQuery();
+            List<String> caregivers = new ArrayList<>();
+            while (resultSet.next()) {
+                caregivers.add(resultSet.getString("Username"));
+            }
+            return caregivers;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public boolean removeAvailability(Date time, String caregiver) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            PreparedStatement statement = con.prepareStatement(
+                    "DELETE FROM Availabilities WHERE Username = ? AND Time = ?");
+            statement.setString(1, caregiver);
+            statement.setDate(2, time);
+            return statement.executeUpdate() > 0;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // open-ended ranges are given to SQL Server as the extremes of the date type so the query stays
+    // a plain range seek
+    private static final Date MIN_DATE = Date.valueOf("0001-01-01");
+    private static final Date MAX_DATE = Date.valueOf("9999-12-31");
+
+    @Override
+    public void forEachAvailability(Date from, Date to, Consumer<Slot> consumer) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            // slots that already have an appointment are left out, in case a booking was recorded
+            // but removing its availability was not
+            PreparedStatement statement = con.prepareStatement(
+                    "SELECT a.Time, a.Username FROM Availabilities a WHERE a.Time >= ? AND a.Time <= ? " +
+                    "AND NOT EXISTS (SELECT 1 FROM Appointments p WHERE p.Time = a.Time AND p.Caregiver_name = a.Username) " +
+                    "ORDER BY a.Time, a.Username");
+            statement.setFetchSize(FETCH_SIZE);
+            statement.setDate(1, from == null ? MIN_DATE : from);
+            statement.setDate(2, to == null ? MAX_DATE : to);
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                consumer.accept(new Slot(resultSet.getDate("Time"), resultSet.getString("Username")));
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public int addAvailabilities(List<Slot> slots) throws SQLException {
+        if (slots.isEmpty()) {
+            return 0;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            con.setAutoCommit(false);
+            int added = insertAvailabilities(con, slots);
+            con.commit();
+            return added;
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static int insertAvailabilities(Connection con, List<Slot> slots) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(
+                "INSERT INTO Availabilities (Time, Username) SELECT ?, ? " +
+                "WHERE NOT EXISTS (SELECT 1 FROM Availabilities WITH (UPDLOCK, HOLDLOCK) " +
+                "                  WHERE Time = ? AND Username = ?) " +
+                "AND NOT EXISTS (SELECT 1 FROM Appointments WHERE Time = ? AND Caregiver_name = ?)");
+        for (Slot slot : slots) {
+            statement.setDate(1, slot.getTime());
+            statement.setString(2, slot.getCaregiver());
+            statement.setDate(3, slot.getTime());
+            statement.setString(4, slot.getCaregiver());
+            statement.setDate(5, slot.getTime());
+            statement.setString(6, slot.getCaregiver());
+            statement.addBatch();
+        }
+        return countUpdates(statement.executeBatch());
+    }
+
+    @Override
+    public int removeAvailabilities(List<Slot> slots) throws SQLException {
+        if (slots.isEmpty()) {
+            return 0;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement statement = con.prepareStatement(
+                    "DELETE FROM Availabilities WHERE Username = ? AND Time = ?");
+            for (Slot slot : slots) {
+                statement.setString(1, slot.getCaregiver());
+                statement.setDate(2, slot.getTime());
+                statement.addBatch();
+            }
+            int removed = countUpdates(statement.executeBatch());
+            con.commit();
+            return removed;
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static int countUpdates(int[] counts) {
+        int total = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                total += count;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public void addVaccine(String name, int doses) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            PreparedStatement statement = con.prepareStatement("INSERT INTO vaccines VALUES (?, ?)");
+            statement.setString(1, name);
+            statement.setInt(2, doses);
+            statement.executeUpdate();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public Integer getDoses(String name) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            PreparedStatement statement = con.prepareStatement("SELECT Name, Doses FROM Vaccines WHERE Name = ?");
+            statement.setString(1, name);
+            ResultSet resultSet = statement.executeQuery();
+            if (resultSet.next()) {
+                return resultSet.getInt("Doses");
+            }
+            return null;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public Map<String, Integer> getVaccines() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            PreparedStatement statement = con.prepareStatement("SELECT Name, Doses FROM Vaccines ORDER BY Name");
+            ResultSet resultSet = statement.executeQuery();
+            Map<String, Integer> vaccines = new LinkedHashMap<>();
+            while (resultSet.next()) {
+                vaccines.put(resultSet.getString("Name"), resultSet.getInt("Doses"));
+            }
+            return vaccines;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public void applyDoseDeltas(Map<String, Integer> deltas) throws SQLException {
+        if (deltas.isEmpty()) {
+            return;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            con.setAutoCommit(false);
+            updateDoses(con, deltas);
+            con.commit();
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static void updateDoses(Connection con, Map<String, Integer> deltas) throws SQLException {
+        PreparedStatement statement = con.prepareStatement("UPDATE Vaccines SET Doses = Doses + ? WHERE Name = ?");
+        for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+            statement.setInt(1, delta.getValue());
+            statement.setString(2, delta.getKey());
+            statement.addBatch();
+        }
+        statement.executeBatch();
+    }
+
+    @Override
+    public boolean adjustDoses(String name, int delta) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            PreparedStatement statement = con.prepareStatement(
+                    "UPDATE Vaccines SET Doses = Doses + ? WHERE Name = ? AND Doses + ? >= 0");
+            statement.setInt(1, delta);
+            statement.setString(2, name);
+            statement.setInt(3, delta);
+            return statement.executeUpdate() > 0;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // One batch, one round trip, one transaction: take a dose, claim the first free caregiver and
+    // insert the appointment. READPAST lets concurrent reservers skip slots another transaction has
+    // already locked instead of queueing behind it, and the dose is only taken while Doses > 0.
+    private static final String RESERVE =
+            "SET NOCOUNT ON; " +
+            "SET XACT_ABORT ON; " +
+            "DECLARE @caregiver varchar(255); " +
+            "DECLARE @claimed TABLE (Username varchar(255)); " +
+            "BEGIN TRANSACTION; " +
+            "UPDATE Vaccines SET Doses = Doses - 1 WHERE Name = ? AND Doses > 0; " +
+            "IF @@ROWCOUNT = 0 " +
+            "BEGIN " +
+            "    ROLLBACK TRANSACTION; " +
+            "    SELECT 'NO_DOSES' AS Status, NULL AS Caregiver; " +
+            "    RETURN; " +
+            "END; " +
+            "WITH slot AS (SELECT TOP (1) Username FROM Availabilities WITH (UPDLOCK, ROWLOCK, READPAST) " +
+            "              WHERE Time = ? ORDER BY Username) " +
+            "DELETE FROM slot OUTPUT deleted.Username INTO @claimed; " +
+            "SELECT @caregiver = Username FROM @claimed; " +
+            "IF @caregiver IS NULL " +
+            "BEGIN " +
+            "    ROLLBACK TRANSACTION; " +
+            "    SELECT 'NO_CAREGIVER' AS Status, NULL AS Caregiver; " +
+            "    RETURN; " +
+            "END; " +
+            "INSERT INTO Appointments (id, Time, Caregiver_name, Vaccine_name, Patient_name) " +
+            "VALUES (?, ?, @caregiver, ?, ?); " +
+            "COMMIT TRANSACTION; " +
+            "SELECT 'RESERVED' AS Status, @caregiver AS Caregiver;";
+
+    @Override
+    public Reservation reserve(Date time, String vaccine, String patient) throws SQLException {
+        // ids handed out to failed reservations are not reused; the gaps are harmless
+        int appointmentId = appointmentIds.next();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            PreparedStatement statement = con.prepareStatement(RESERVE);
+            statement.setString(1, vaccine);
+            statement.setDate(2, time);
+            statement.setInt(3, appointmentId);
+            statement.setDate(4, time);
+            statement.setString(5, vaccine);
+            statement.setString(6, patient);
+            ResultSet resultSet = firstResultSet(statement);
+            if (resultSet == null || !resultSet.next()) {
+                throw new SQLException("Reservation returned no status");
+            }
+            Reservation.Status status = Reservation.Status.valueOf(resultSet.getString("Status"));
+            if (status != Reservation.Status.RESERVED) {
+                return Reservation.failed(status);
+            }
+            return Reservation.reserved(new Appointment.AppointmentBuilder(appointmentId, time,
+                    resultSet.getString("Caregiver"), vaccine, patient).build());
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // SQL Server accepts at most 2100 parameters per statement
+    private static final int MAX_IN_LIST = 1000;
+
+    @Override
+    public List<Reservation> reserveAll(List<String> patients, Date from, Date to, String vaccine)
+            throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            con.setAutoCommit(false);
+            Set<String> known = selectExistingPatients(con, patients);
+
+            // lock the vaccine row for the whole pass so the doses read here stay ours
+            PreparedStatement dosesStmt = con.prepareStatement(
+                    "SELECT Doses FROM Vaccines WITH (UPDLOCK, ROWLOCK) WHERE Name = ?");
+            dosesStmt.setString(1, vaccine);
+            ResultSet dosesRS = dosesStmt.executeQuery();
+            int doses = dosesRS.next() ? dosesRS.getInt("Doses") : 0;
+
+            int wanted = 0;
+            for (String patient : patients) {
+                if (known.contains(patient)) {
+                    wanted++;
+                }
+            }
+            // only lock as many slots as can actually be used
+            List<Date> slotTimes = new ArrayList<>();
+            List<String> slotCaregivers = new ArrayList<>();
+            int slotsToTake = Math.min(wanted, Math.max(doses, 0));
+            if (slotsToTake > 0) {
+                PreparedStatement slotsStmt = con.prepareStatement(
+                        "SELECT TOP (?) Time, Username FROM Availabilities WITH (UPDLOCK, ROWLOCK, READPAST) " +
+                        "WHERE Time >= ? AND Time <= ? ORDER BY Time, Username");
+                slotsStmt.setInt(1, slotsToTake);
+                slotsStmt.setDate(2, from);
+                slotsStmt.setDate(3, to);
+                ResultSet slotsRS = slotsStmt.executeQuery();
+                while (slotsRS.next()) {
+                    slotTimes.add(slotsRS.getDate("Time"));
+                    slotCaregivers.add(slotsRS.getString("Username"));
+                }
+            }
+
+            List<Reservation> results = new ArrayList<>(patients.size());
+            List<Appointment> booked = new ArrayList<>();
+            for (String patient : patients) {
+                if (!known.contains(patient)) {
+                    results.add(Reservation.failed(Reservation.Status.UNKNOWN_PATIENT));
+                } else if (booked.size() >= doses) {
+                    results.add(Reservation.failed(Reservation.Status.NO_DOSES));
+                } else if (booked.size() >= slotTimes.size()) {
+                    results.add(Reservation.failed(Reservation.Status.NO_CAREGIVER));
+                } else {
+                    int slot = booked.size();
+                    Appointment appointment = new Appointment.AppointmentBuilder(appointmentIds.next(),
+                            slotTimes.get(slot), slotCaregivers.get(slot), vaccine, patient).build();
+                    booked.add(appointment);
+                    results.add(Reservation.reserved(appointment));
+                }
+            }
+
+            if (!booked.isEmpty()) {
+                insertAppointments(con, booked);
+                PreparedStatement deleteStmt = con.prepareStatement(
+                        "DELETE FROM Availabilities WHERE Username = ? AND Time = ?");
+                for (Appointment appointment : booked) {
+                    deleteStmt.setString(1, appointment.getCaregiverName());
+                    deleteStmt.setDate(2, appointment.getTime());
+                    deleteStmt.addBatch();
+                }
+                deleteStmt.executeBatch();
+
+                PreparedStatement dosesUpdate = con.prepareStatement(
+                        "UPDATE Vaccines SET Doses = Doses - ? WHERE Name = ?");
+                dosesUpdate.setInt(1, booked.size());
+                dosesUpdate.setString(2, vaccine);
+                dosesUpdate.executeUpdate();
+            }
+            con.commit();
+            return results;
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // reserve without the caregiver claim: take a dose and insert the appointment, in one round trip
+    private static final String BOOK =
+            "SET NOCOUNT ON; " +
+            "SET XACT_ABORT ON; " +
+            "BEGIN TRANSACTION; " +
+            "UPDATE Vaccines SET Doses = Doses - 1 WHERE Name = ? AND Doses > 0; " +
+            "IF @@ROWCOUNT = 0 " +
+            "BEGIN " +
+            "    ROLLBACK TRANSACTION; " +
+            "    SELECT 'NO_DOSES' AS Status; " +
+            "    RETURN; " +
+            "END; " +
+            "INSERT INTO Appointments (id, Time, Caregiver_name, Vaccine_name, Patient_name) VALUES (?, ?, ?, ?, ?); " +
+            "COMMIT TRANSACTION; " +
+            "SELECT 'RESERVED' AS Status;";
+
+    @Override
+    public List<Reservation> bookSlots(List<Slot> slots, List<String> patients, String vaccine, boolean takeDoses)
+            throws SQLException {
+        if (slots.size() == 1) {
+            return Collections.singletonList(takeDoses
+                    ? bookSlot(slots.get(0), patients.get(0), vaccine)
+                    : insertSlot(slots.get(0), patients.get(0), vaccine));
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            con.setAutoCommit(false);
+            Set<String> known = selectExistingPatients(con, patients);
+            int doses = Integer.MAX_VALUE;
+            if (takeDoses) {
+                PreparedStatement dosesStmt = con.prepareStatement(
+                        "SELECT Doses FROM Vaccines WITH (UPDLOCK, ROWLOCK) WHERE Name = ?");
+                dosesStmt.setString(1, vaccine);
+                ResultSet dosesRS = dosesStmt.executeQuery();
+                doses = dosesRS.next() ? dosesRS.getInt("Doses") : 0;
+            }
+
+            List<Reservation> results = new ArrayList<>(slots.size());
+            List<Appointment> booked = new ArrayList<>();
+            for (int i = 0; i < slots.size(); i++) {
+                if (!known.contains(patients.get(i))) {
+                    results.add(Reservation.failed(Reservation.Status.UNKNOWN_PATIENT));
+                } else if (booked.size() >= doses) {
+                    results.add(Reservation.failed(Reservation.Status.NO_DOSES));
+                } else {
+                    Appointment appointment = new Appointment.AppointmentBuilder(appointmentIds.next(),
+                            slots.get(i).getTime(), slots.get(i).getCaregiver(), vaccine, patients.get(i)).build();
+                    booked.add(appointment);
+                    results.add(Reservation.reserved(appointment));
+                }
+            }
+            if (!booked.isEmpty()) {
+                insertAppointments(con, booked);
+            }
+            if (!booked.isEmpty() && takeDoses) {
+                PreparedStatement dosesUpdate = con.prepareStatement(
+                        "UPDATE Vaccines SET Doses = Doses - ? WHERE Name = ?");
+                dosesUpdate.setInt(1, booked.size());
+                dosesUpdate.setString(2, vaccine);
+                dosesUpdate.executeUpdate();
+            }
+            con.commit();
+            return results;
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private Reservation bookSlot(Slot slot, String patient, String vaccine) throws SQLException {
+        int appointmentId = appointmentIds.next();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            PreparedStatement statement = con.prepareStatement(BOOK);
+            statement.setString(1, vaccine);
+            statement.setInt(2, appointmentId);
+            statement.setDate(3, slot.getTime());
+            statement.setString(4, slot.getCaregiver());
+            statement.setString(5, vaccine);
+            statement.setString(6, patient);
+            ResultSet resultSet = firstResultSet(statement);
+            if (resultSet == null || !resultSet.next()) {
+                throw new SQLException("Booking returned no status");
+            }
+            if (!resultSet.getString("Status").equals("RESERVED")) {
+                return Reservation.failed(Reservation.Status.NO_DOSES);
+            }
+            return Reservation.reserved(new Appointment.AppointmentBuilder(appointmentId, slot.getTime(),
+                    slot.getCaregiver(), vaccine, patient).build());
+        } catch (SQLException e) {
+            if (SqlErrors.isForeignKeyViolation(e)) {
+                return Reservation.failed(Reservation.Status.UNKNOWN_PATIENT);
+            }
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private Reservation insertSlot(Slot slot, String patient, String vaccine) throws SQLException {
+        Appointment appointment = new Appointment.AppointmentBuilder(appointmentIds.next(), slot.getTime(),
+                slot.getCaregiver(), vaccine, patient).build();
+        try {
+            addAppointment(appointment);
+        } catch (SQLException e) {
+            if (SqlErrors.isForeignKeyViolation(e)) {
+                return Reservation.failed(Reservation.Status.UNKNOWN_PATIENT);
+            }
+            throw e;
+        }
+        return Reservation.reserved(appointment);
+    }
+
+    private static void insertAppointments(Connection con, List<Appointment> appointments) throws SQLException {
+        PreparedStatement insertStmt = con.prepareStatement(
+                "INSERT INTO Appointments (Patient_name, Caregiver_name, Vaccine_name, Time, id) VALUES (?, ?, ?, ?, ?)");
+        for (Appointment appointment : appointments) {
+            insertStmt.setString(1, appointment.getPatientName());
+            insertStmt.setString(2, appointment.getCaregiverName());
+            insertStmt.setString(3, appointment.getVaccineName());
+            insertStmt.setDate(4, appointment.getTime());
+            insertStmt.setInt(5, appointment.getId());
+            insertStmt.addBatch();
+        }
+        insertStmt.executeBatch();
+    }
+
+    private static Set<String> selectExistingPatients(Connection con, List<String> patients) throws SQLException {
+        Set<String> existing = new HashSet<>();
+        List<String> distinct = new ArrayList<>(new LinkedHashSet<>(patients));
+        for (int start = 0; start < distinct.size(); start += MAX_IN_LIST) {
+            List<String> chunk = distinct.subList(start, Math.min(start + MAX_IN_LIST, distinct.size()));
+            // not cached: the text depends on the chunk size
+            PreparedStatement statement = con.prepareStatement(
+                    "SELECT Username FROM Patients WHERE Username IN (" + placeholders(chunk.size()) + ")",
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            try {
+                for (int i = 0; i < chunk.size(); i++) {
+                    statement.setString(i + 1, chunk.get(i));
+                }
+                ResultSet resultSet = statement.executeQuery();
+                while (resultSet.next()) {
+                    existing.add(resultSet.getString("Username"));
+                }
+            } finally {
+                statement.close();
+            }
+        }
+        return existing;
+    }
+
+    static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+        return sb.toString();
+    }
+
+    // skips any update counts a multi-statement batch reports before its result set
+    private static ResultSet firstResultSet(PreparedStatement statement) throws SQLException {
+        boolean isResultSet = statement.execute();
+        while (true) {
+            if (isResultSet) {
+                return statement.getResultSet();
+            }
+            if (statement.getUpdateCount() == -1) {
+                return null;
+            }
+            isResultSet = statement.getMoreResults();
+        }
+    }
+
+    @Override
+    public void addAppointment(Appointment appointment) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            PreparedStatement statement = con.prepareStatement(
+                    "INSERT INTO Appointments (Patient_name, Caregiver_name, Vaccine_name, Time, id) VALUES (?, ?, ?, ?, ?)");
+            statement.setString(1, appointment.getPatientName());
+            statement.setString(2, appointment.getCaregiverName());
+            statement.setString(3, appointment.getVaccineName());
+            statement.setDate(4, appointment.getTime());
+            statement.setInt(5, appointment.getId());
+            statement.executeUpdate();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Cancelling: each chunk of appointments is deleted by one statement that returns the deleted
+    // rows, then their slots go back as one batch and their doses as one UPDATE per vaccine, so
+    // cancelling a few hundred appointments costs a handful of round trips
+    @Override
+    public List<Appointment> cancelAppointments(List<Integer> ids, String patient, String caregiver, boolean restore)
+            throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            con.setAutoCommit(false);
+            List<Appointment> cancelled = new ArrayList<>();
+            List<Integer> distinct = new ArrayList<>(new LinkedHashSet<>(ids));
+            for (int start = 0; start < distinct.size(); start += MAX_IN_LIST) {
+                List<Integer> chunk = distinct.subList(start, Math.min(start + MAX_IN_LIST, distinct.size()));
+                // not cached: the text depends on the chunk size
+                PreparedStatement statement = con.prepareStatement(
+                        "DELETE FROM Appointments " +
+                        "OUTPUT DELETED.id, DELETED.Time, DELETED.Caregiver_name, DELETED.Vaccine_name, DELETED.Patient_name " +
+                        "WHERE id IN (" + placeholders(chunk.size()) + ") " +
+                        "AND (? IS NULL OR Patient_name = ?) AND (? IS NULL OR Caregiver_name = ?)",
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                try {
+                    int i = 0;
+                    for (Integer id : chunk) {
+                        statement.setInt(++i, id);
+                    }
+                    statement.setString(++i, patient);
+                    statement.setString(++i, patient);
+                    statement.setString(++i, caregiver);
+                    statement.setString(++i, caregiver);
+                    readAppointments(statement.executeQuery(), cancelled);
+                } finally {
+                    statement.close();
+                }
+            }
+            return finishCancel(con, cancelled, restore);
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public List<Appointment> cancelCaregiverAppointments(String caregiver, Date from, Date to, boolean restore)
+            throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement statement = con.prepareStatement(
+                    "DELETE FROM Appointments " +
+                    "OUTPUT DELETED.id, DELETED.Time, DELETED.Caregiver_name, DELETED.Vaccine_name, DELETED.Patient_name " +
+                    "WHERE Caregiver_name = ? AND Time >= ? AND Time <= ?");
+            statement.setString(1, caregiver);
+            statement.setDate(2, from);
+            statement.setDate(3, to);
+            List<Appointment> cancelled = new ArrayList<>();
+            readAppointments(statement.executeQuery(), cancelled);
+            return finishCancel(con, cancelled, restore);
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // restores what the cancelled appointments held, if asked to, and commits
+    private static List<Appointment> finishCancel(Connection con, List<Appointment> cancelled, boolean restore)
+            throws SQLException {
+        if (restore && !cancelled.isEmpty()) {
+            List<Slot> slots = new ArrayList<>(cancelled.size());
+            // sorted, so concurrent cancels update the vaccines in the same order
+            Map<String, Integer> doses = new TreeMap<>();
+            for (Appointment appointment : cancelled) {
+                slots.add(new Slot(appointment.getTime(), appointment.getCaregiverName()));
+                doses.merge(appointment.getVaccineName(), 1, Integer::sum);
+            }
+            insertAvailabilities(con, slots);
+            updateDoses(con, doses);
+        }
+        con.commit();
+        cancelled.sort(Comparator.comparingInt(Appointment::getId));
+        return cancelled;
+    }
+
+    private static void readAppointments(ResultSet resultSet, List<Appointment> appointments) throws SQLException {
+        while (resultSet.next()) {
+            appointments.add(readAppointment(resultSet));
+        }
+    }
+
+    @Override
+    public Appointment getAppointment(int id) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            PreparedStatement statement = con.prepareStatement(
+                    "SELECT id, Time, Caregiver_name, Vaccine_name, Patient_name FROM Appointments WHERE id = ?");
+            statement.setInt(1, id);
+            ResultSet resultSet = statement.executeQuery();
+            if (resultSet.next()) {
+                return readAppointment(resultSet);
+            }
+            return null;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public boolean deleteAppointment(int id) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            PreparedStatement statement = con.prepareStatement("DELETE FROM Appointments WHERE id = ?");
+            statement.setInt(1, id);
+            return statement.executeUpdate() > 0;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public List<Appointment> getPatientAppointments(String patient) throws SQLException {
+        return selectAppointments("SELECT id, Time, Caregiver_name, Vaccine_name, Patient_name FROM Appointments " +
+                "WHERE Patient_name = ? ORDER BY id", patient);
+    }
+
+    @Override
+    public List<Appointment> getCaregiverAppointments(String caregiver) throws SQLException {
+        return selectAppointments("SELECT id, Time, Caregiver_name, Vaccine_name, Patient_name FROM Appointments " +
+                "WHERE Caregiver_name = ? ORDER BY id", caregiver);
+    }
+
+    private List<Appointment> selectAppointments(String sql, String username) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            PreparedStatement statement = con.prepareStatement(sql);
+            statement.setString(1, username);
+            ResultSet resultSet = statement.executeQuery();
+            List<Appointment> appointments = new ArrayList<>();
+            while (resultSet.next()) {
+                appointments.add(readAppointment(resultSet));
+            }
+            return appointments;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // SQLServerResultSet.TYPE_SS_SERVER_CURSOR_FORWARD_ONLY: the rows stay on the server and each
+    // round trip fetches the next FETCH_SIZE of them
+    private static final int SERVER_CURSOR_FORWARD_ONLY = 2004;
+
+    // each table is read in the order of its covering date index, so the server streams the rows
+    // instead of sorting the whole range before the first one
+    @Override
+    public void forEachAppointment(Date from, Date to, Consumer<Appointment> consumer) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            streamAppointments(con, "SELECT id, Time, Caregiver_name, Vaccine_name, Patient_name FROM AppointmentsArchive " +
+                    "WHERE Time >= ? AND Time <= ? ORDER BY Time, id", from, to, consumer);
+            streamAppointments(con, "SELECT id, Time, Caregiver_name, Vaccine_name, Patient_name FROM Appointments " +
+                    "WHERE Time >= ? AND Time <= ? ORDER BY Time, Caregiver_name, id", from, to, consumer);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static void streamAppointments(Connection con, String sql, Date from, Date to,
+                                           Consumer<Appointment> consumer) throws SQLException {
+        // statements with a cursor type are not cached by the pool, so this one is closed here
+        try (PreparedStatement statement = con.prepareStatement(sql, SERVER_CURSOR_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY)) {
+            statement.setFetchSize(FETCH_SIZE);
+            statement.setDate(1, from == null ? MIN_DATE : from);
+            statement.setDate(2, to == null ? MAX_DATE : to);
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                consumer.accept(readAppointment(resultSet));
+            }
+        }
+    }
+
+    // each batch deletes and inserts in one statement, so it is atomic on its own; batches stay
+    // well under the 5000 locks at which SQL Server would escalate to a table lock
+    @Override
+    public int archiveAppointments(Date before, int limit) throws SQLException {
+        return archive("DELETE TOP (?) FROM Appointments " +
+                "OUTPUT DELETED.id, DELETED.Time, DELETED.Caregiver_name, DELETED.Vaccine_name, DELETED.Patient_name " +
+                "INTO AppointmentsArchive (id, Time, Caregiver_name, Vaccine_name, Patient_name) " +
+                "WHERE Time < ?", before, limit);
+    }
+
+    @Override
+    public int archiveAvailabilities(Date before, int limit) throws SQLException {
+        return archive("DELETE TOP (?) FROM Availabilities " +
+                "OUTPUT DELETED.Time, DELETED.Username INTO AvailabilitiesArchive (Time, Username) " +
+                "WHERE Time < ?", before, limit);
+    }
+
+    private int archive(String sql, Date before, int limit) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            PreparedStatement statement = con.prepareStatement(sql);
+            statement.setInt(1, limit);
+            statement.setDate(2, before);
+            return statement.executeUpdate();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public List<Appointment> getArchivedPatientAppointments(String patient) throws SQLException {
+        return selectAppointments("SELECT id, Time, Caregiver_name, Vaccine_name, Patient_name FROM AppointmentsArchive " +
+                "WHERE Patient_name = ? ORDER BY id", patient);
+    }
+
+    @Override
+    public List<Appointment> getArchivedCaregiverAppointments(String caregiver) throws SQLException {
+        return selectAppointments("SELECT id, Time, Caregiver_name, Vaccine_name, Patient_name FROM AppointmentsArchive " +
+                "WHERE Caregiver_name = ? ORDER BY id", caregiver);
+    }
+
+    @Override
+    public boolean[] importPatients(Map<String, Credentials> accounts) throws SQLException {
+        return importAccounts("Patients", accounts);
+    }
+
+    @Override
+    public boolean[] importCaregivers(Map<String, Credentials> accounts) throws SQLException {
+        return importAccounts("Caregivers", accounts);
+    }
+
+    private boolean[] importAccounts(String table, Map<String, Credentials> accounts) throws SQLException {
+        List<Map.Entry<String, Credentials>> rows = new ArrayList<>(accounts.entrySet());
+        return importRows("INSERT INTO " + table + " (Username, Salt, Hash) SELECT ?, ?, ? " +
+                "WHERE NOT EXISTS (SELECT 1 FROM " + table + " WITH (UPDLOCK, HOLDLOCK) WHERE Username = ?)",
+                rows.size(), (statement, i) -> {
+                    Map.Entry<String, Credentials> row = rows.get(i);
+                    statement.setString(1, row.getKey());
+                    statement.setBytes(2, row.getValue().getSalt());
+                    statement.setBytes(3, row.getValue().getHash());
+                    statement.setString(4, row.getKey());
+                });
+    }
+
+    @Override
+    public boolean[] importVaccines(Map<String, Integer> vaccines) throws SQLException {
+        List<Map.Entry<String, Integer>> rows = new ArrayList<>(vaccines.entrySet());
+        return importRows("INSERT INTO Vaccines (Name, Doses) SELECT ?, ? " +
+                "WHERE NOT EXISTS (SELECT 1 FROM Vaccines WITH (UPDLOCK, HOLDLOCK) WHERE Name = ?)",
+                rows.size(), (statement, i) -> {
+                    statement.setString(1, rows.get(i).getKey());
+                    statement.setInt(2, rows.get(i).getValue());
+                    statement.setString(3, rows.get(i).getKey());
+                });
+    }
+
+    @Override
+    public boolean[] importAvailabilities(List<Slot> slots) throws SQLException {
+        return importRows("INSERT INTO Availabilities (Time, Username) SELECT ?, ? " +
+                "WHERE EXISTS (SELECT 1 FROM Caregivers WHERE Username = ?) " +
+                "AND NOT EXISTS (SELECT 1 FROM Availabilities WITH (UPDLOCK, HOLDLOCK) WHERE Time = ? AND Username = ?)",
+                slots.size(), (statement, i) -> {
+                    Slot slot = slots.get(i);
+                    statement.setDate(1, slot.getTime());
+                    statement.setString(2, slot.getCaregiver());
+                    statement.setString(3, slot.getCaregiver());
+                    statement.setDate(4, slot.getTime());
+                    statement.setString(5, slot.getCaregiver());
+                });
+    }
+
+    @Override
+    public boolean[] importAppointments(List<Appointment> appointments) throws SQLException {
+        boolean[] inserted = importRows(
+                "INSERT INTO Appointments (id, Time, Caregiver_name, Vaccine_name, Patient_name) SELECT ?, ?, ?, ?, ? " +
+                "WHERE EXISTS (SELECT 1 FROM Caregivers WHERE Username = ?) " +
+                "AND EXISTS (SELECT 1 FROM Vaccines WHERE Name = ?) " +
+                "AND EXISTS (SELECT 1 FROM Patients WHERE Username = ?) " +
+                "AND NOT EXISTS (SELECT 1 FROM Appointments WITH (UPDLOCK, HOLDLOCK) WHERE id = ?) " +
+                "AND NOT EXISTS (SELECT 1 FROM AppointmentsArchive WHERE id = ?)",
+                appointments.size(), (statement, i) -> {
+                    Appointment appointment = appointments.get(i);
+                    statement.setInt(1, appointment.getId());
+                    statement.setDate(2, appointment.getTime());
+                    statement.setString(3, appointment.getCaregiverName());
+                    statement.setString(4, appointment.getVaccineName());
+                    statement.setString(5, appointment.getPatientName());
+                    statement.setString(6, appointment.getCaregiverName());
+                    statement.setString(7, appointment.getVaccineName());
+                    statement.setString(8, appointment.getPatientName());
+                    statement.setInt(9, appointment.getId());
+                    statement.setInt(10, appointment.getId());
+                }, (con, rows) -> {
+                    // the sequence moves past the imported ids in the same transaction, for every
+                    // process allocating from it, not just this one
+                    int maxId = maxId(appointments, rows);
+                    if (maxId > 0) {
+                        AppointmentIdAllocator.advancePast(con, maxId);
+                    }
+                });
+        // blocks this process already holds are not in the sequence any more; skip those ids too
+        appointmentIds.skipPast(maxId(appointments, inserted));
+        return inserted;
+    }
+
+    private static int maxId(List<Appointment> appointments, boolean[] inserted) {
+        int maxId = 0;
+        for (int i = 0; i < appointments.size(); i++) {
+            if (inserted[i]) {
+                maxId = Math.max(maxId, appointments.get(i).getId());
+            }
+        }
+        return maxId;
+    }
+
+    private interface RowBinder {
+        void bind(PreparedStatement statement, int row) throws SQLException;
+    }
+
+    // runs in the import's transaction after the batch, before it commits
+    private interface BeforeCommit {
+        void run(Connection con, boolean[] inserted) throws SQLException;
+    }
+
+    // runs the insert once per row as one batch in one transaction; a row whose insert affected
+    // nothing was skipped by its WHERE clause
+    private static boolean[] importRows(String sql, int rows, RowBinder binder) throws SQLException {
+        return importRows(sql, rows, binder, null);
+    }
+
+    private static boolean[] importRows(String sql, int rows, RowBinder binder, BeforeCommit beforeCommit)
+            throws SQLException {
+        boolean[] inserted = new boolean[rows];
+        if (rows == 0) {
+            return inserted;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = open(cm);
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement statement = con.prepareStatement(sql);
+            for (int i = 0; i < rows; i++) {
+                binder.bind(statement, i);
+                statement.addBatch();
+            }
+            int[] counts = statement.executeBatch();
+            for (int i = 0; i < rows; i++) {
+                inserted[i] = counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO;
+            }
+            if (beforeCommit != null) {
+                beforeCommit.run(con, inserted);
+            }
+            con.commit();
+            return inserted;
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static Appointment readAppointment(ResultSet resultSet) throws SQLException {
+        return new Appointment.AppointmentBuilder(resultSet.getInt("id"), resultSet.getDate("Time"),
+                resultSet.getString("Caregiver_name"), resultSet.getString("Vaccine_name"),
+                resultSet.getString("Patient_name")).build();
+    }
+}
@@ -0,0 +1,43 @@
+package scheduler.storage;
+
+import scheduler.model.Appointment;
+
+// the outcome of trying to book one patient
+public class Reservation {
+
+    public enum Status {
+        RESERVED,
+        NO_DOSES,
+        NO_CAREGIVER,
+        UNKNOWN_PATIENT
+    }
+
+    private final Status status;
+    private final Appointment appointment;
+
+    private Reservation(Status status, Appointment appointment) {
+        this.status = status;
+        this.appointment = appointment;
+    }
+
+    public static Reservation reserved(Appointment appointment) {
+        return new Reservation(Status.RESERVED, appointment);
+    }
+
+    public static Reservation failed(Status status) {
+        return new Reservation(status, null);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isReserved() {
+        return status == Status.RESERVED;
+    }
+
+    // null unless the reservation succeeded
+    public Appointment getAppointment() {
+        return appointment;
+    }
+}
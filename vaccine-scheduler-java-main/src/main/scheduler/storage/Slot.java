@@ -0,0 +1,45 @@
+package scheduler.storage;
+
+import java.sql.Date;
+import java.util.Objects;
+
+// one row of Availabilities: a caregiver being free on a date
+public class Slot {
+    private final Date time;
+    private final String caregiver;
+
+    public Slot(Date time, String caregiver) {
+        this.time = time;
+        this.caregiver = caregiver;
+    }
+
+    public Date getTime() {
+        return time;
+    }
+
+    public String getCaregiver() {
+        return caregiver;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Slot)) {
+            return false;
+        }
+        Slot other = (Slot) o;
+        return time.equals(other.time) && caregiver.equals(other.caregiver);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(time, caregiver);
+    }
+
+    @Override
+    public String toString() {
+        return time + " " + caregiver;
+    }
+}
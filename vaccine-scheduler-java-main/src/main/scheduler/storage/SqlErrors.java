@@ -0,0 +1,41 @@
+package scheduler.storage;
+
+import java.sql.Date;
+import java.sql.SQLException;
+
+// the SQL Server error codes the application reacts to, and exceptions that carry them
+public class SqlErrors {
+
+    public static final int DUPLICATE_KEY = 2627;
+    public static final int DUPLICATE_UNIQUE_INDEX = 2601;
+    public static final int FOREIGN_KEY = 547;
+    // raised by the engines themselves, in the range SQL Server leaves for user-defined errors
+    public static final int SLOT_BOOKED = 50001;
+
+    public static boolean isDuplicateKey(SQLException e) {
+        return e.getErrorCode() == DUPLICATE_KEY || e.getErrorCode() == DUPLICATE_UNIQUE_INDEX;
+    }
+
+    public static boolean isForeignKeyViolation(SQLException e) {
+        return e.getErrorCode() == FOREIGN_KEY;
+    }
+
+    public static boolean isSlotBooked(SQLException e) {
+        return e.getErrorCode() == SLOT_BOOKED;
+    }
+
+    static SQLException duplicateKey(String table, String key) {
+        return new SQLException("Violation of PRIMARY KEY constraint. Cannot insert duplicate key in object '"
+                + table + "'. The duplicate key value is (" + key + ").", "23000", DUPLICATE_KEY);
+    }
+
+    static SQLException foreignKey(String table, String key) {
+        return new SQLException("The INSERT statement conflicted with the FOREIGN KEY constraint referencing '"
+                + table + "' (" + key + ").", "23000", FOREIGN_KEY);
+    }
+
+    static SQLException slotBooked(Date time, String caregiver) {
+        return new SQLException("Caregiver " + caregiver + " already has an appointment on " + time + ".",
+                "23000", SLOT_BOOKED);
+    }
+}
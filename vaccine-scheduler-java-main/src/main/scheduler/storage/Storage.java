@@ -0,0 +1,91 @@
+package scheduler.storage;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.SchemaManager;
+import scheduler.util.Config;
+
+import java.sql.SQLException;
+
+/**
+ * Holds the storage engine the application runs against.
+ *
+ * The engine is chosen once at startup from the Storage setting: "jdbc" (the default) uses the
+ * SQL Server database configured for ConnectionManager, "memory" keeps everything in this process.
+ * The jdbc engine serves caregiver availability from memory (see CachingStorageEngine) unless
+ * AvailabilityIndex is turned off, which is needed when several processes share one database.
+ * Before the jdbc engine is created the schema is migrated to the latest version (see SchemaManager)
+ * unless SchemaMigrate is turned off.
+ *
+ * At exit the engine is closed, so its background writes are flushed, and only then is the
+ * connection pool shut down; one shutdown hook does both, in that order.
+ */
+public class Storage {
+
+    private static volatile StorageEngine engine = null;
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(Storage::shutdown, "storage-shutdown"));
+    }
+
+    public static StorageEngine get() {
+        StorageEngine e = engine;
+        if (e == null) {
+            synchronized (Storage.class) {
+                e = engine;
+                if (e == null) {
+                    e = create(Config.get("Storage", "jdbc"));
+                    engine = e;
+                }
+            }
+        }
+        return e;
+    }
+
+    // replaces the engine, e.g. to run tools against an in-memory engine
+    public static synchronized void set(StorageEngine storageEngine) {
+        engine = storageEngine;
+    }
+
+    private static void shutdown() {
+        StorageEngine e = engine;
+        try {
+            if (e != null) {
+                e.close();
+            }
+        } catch (SQLException ex) {
+            System.out.println("Could not write pending changes at exit");
+            ex.printStackTrace();
+        } finally {
+            ConnectionManager.shutdownPool();
+        }
+    }
+
+    public static StorageEngine create(String name) {
+        switch (name.toLowerCase()) {
+            case "jdbc":
+                if (Config.getBoolean("SchemaMigrate", true)) {
+                    try {
+                        new SchemaManager().migrate();
+                    } catch (SQLException e) {
+                        System.out.println("Could not bring the database schema up to date");
+                        e.printStackTrace();
+                    }
+                }
+                StorageEngine jdbc = new JdbcStorageEngine();
+                if (!Config.getBoolean("AvailabilityIndex", true)) {
+                    return jdbc;
+                }
+                try {
+                    return new CachingStorageEngine(jdbc);
+                } catch (SQLException e) {
+                    System.out.println("Could not load caregiver availability, continuing without the in-memory index");
+                    e.printStackTrace();
+                    return jdbc;
+                }
+            case "memory":
+                return new InMemoryStorageEngine();
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + name);
+        }
+    }
+}
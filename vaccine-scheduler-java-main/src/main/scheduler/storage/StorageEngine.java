@@ -0,0 +1,153 @@
+package scheduler.storage;
+
+import scheduler.model.Appointment;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Everything the scheduler reads from or writes to the five tables in create.sql.
+ *
+ * Implementations must be safe to call from several threads at once. Failures are reported as
+ * SQLException, including by engines that are not backed by JDBC, so that callers handle every
+ * engine the same way.
+ */
+public interface StorageEngine {
+
+    // writes anything the engine still holds back and stops its background work; called once, at exit
+    default void close() throws SQLException {
+    }
+
+    // Patients and Caregivers
+    void createPatient(String username, byte[] salt, byte[] hash) throws SQLException;
+
+    void createCaregiver(String username, byte[] salt, byte[] hash) throws SQLException;
+
+    // returns null if there is no such account
+    Credentials getPatientCredentials(String username) throws SQLException;
+
+    Credentials getCaregiverCredentials(String username) throws SQLException;
+
+    boolean patientExists(String username) throws SQLException;
+
+    boolean caregiverExists(String username) throws SQLException;
+
+    // the given usernames that have a patient account, looked up together
+    Set<String> existingPatients(List<String> usernames) throws SQLException;
+
+    // calls the consumer for every username, without holding them all in memory
+    void forEachPatient(Consumer<String> consumer) throws SQLException;
+
+    void forEachCaregiver(Consumer<String> consumer) throws SQLException;
+
+    // Availabilities
+    // fails with SqlErrors.SLOT_BOOKED if the caregiver already has an appointment on that date
+    void addAvailability(Date time, String caregiver) throws SQLException;
+
+    // caregivers available on the given date, ordered by username
+    List<String> getAvailableCaregivers(Date time) throws SQLException;
+
+    // returns false if the caregiver was not available on that date
+    boolean removeAvailability(Date time, String caregiver) throws SQLException;
+
+    // calls the consumer for every slot between from and to (inclusive, null for no bound), in
+    // (date, username) order, without holding them all in memory
+    void forEachAvailability(Date from, Date to, Consumer<Slot> consumer) throws SQLException;
+
+    // adds the slots as one batch, skipping those that already exist or are booked; returns how many
+    // were added
+    int addAvailabilities(List<Slot> slots) throws SQLException;
+
+    // removes the slots as one batch; returns how many existed
+    int removeAvailabilities(List<Slot> slots) throws SQLException;
+
+    // Vaccines
+    void addVaccine(String name, int doses) throws SQLException;
+
+    // returns null if there is no such vaccine
+    Integer getDoses(String name) throws SQLException;
+
+    // every vaccine and its available doses, ordered by name
+    Map<String, Integer> getVaccines() throws SQLException;
+
+    // adds each delta to the vaccine's doses as one batch, without checking the result
+    void applyDoseDeltas(Map<String, Integer> deltas) throws SQLException;
+
+    // adds delta (which may be negative) to the available doses; returns false if the vaccine
+    // does not exist or the doses would drop below zero
+    boolean adjustDoses(String name, int delta) throws SQLException;
+
+    // Appointments
+
+    // books the first caregiver (by username) available on the given date and takes one dose of the
+    // vaccine, as one atomic step; concurrent callers never get the same caregiver slot or dose
+    Reservation reserve(Date time, String vaccine, String patient) throws SQLException;
+
+    // books every patient, in list order, onto the free caregiver slots between from and to
+    // (inclusive), taken in (date, username) order, as one transaction; the result has one
+    // reservation per patient, in the same order
+    List<Reservation> reserveAll(List<String> patients, Date from, Date to, String vaccine) throws SQLException;
+
+    // books patients.get(i) onto slots.get(i) for slots the caller has already claimed (removed from
+    // Availabilities itself); with takeDoses each booking also takes a dose and patients past the
+    // available doses get NO_DOSES, without it the caller has already accounted for the doses
+    List<Reservation> bookSlots(List<Slot> slots, List<String> patients, String vaccine, boolean takeDoses)
+            throws SQLException;
+
+    void addAppointment(Appointment appointment) throws SQLException;
+
+    // cancels the appointments with the given ids, as one transaction, leaving out those that do not
+    // exist or, when patient or caregiver is not null, are not that patient's or caregiver's; with
+    // restore each cancelled appointment's caregiver slot and dose go back in the same transaction,
+    // without it the caller puts them back itself; returns the cancelled appointments ordered by id
+    List<Appointment> cancelAppointments(List<Integer> ids, String patient, String caregiver, boolean restore)
+            throws SQLException;
+
+    // cancels every appointment the caregiver has between from and to (inclusive), as above
+    List<Appointment> cancelCaregiverAppointments(String caregiver, Date from, Date to, boolean restore)
+            throws SQLException;
+
+    // returns null if there is no such appointment
+    Appointment getAppointment(int id) throws SQLException;
+
+    boolean deleteAppointment(int id) throws SQLException;
+
+    // appointments ordered by id
+    List<Appointment> getPatientAppointments(String patient) throws SQLException;
+
+    List<Appointment> getCaregiverAppointments(String caregiver) throws SQLException;
+
+    // calls the consumer for every appointment dated between from and to (inclusive), without
+    // holding them all in memory: archived ones first, then current ones, each in date order
+    void forEachAppointment(Date from, Date to, Consumer<Appointment> consumer) throws SQLException;
+
+    // Archive: rows dated before a cutoff move to AppointmentsArchive and AvailabilitiesArchive, at
+    // most limit rows per call and each call its own short transaction; returns how many moved, so
+    // callers repeat until it is less than limit
+    int archiveAppointments(Date before, int limit) throws SQLException;
+
+    int archiveAvailabilities(Date before, int limit) throws SQLException;
+
+    // archived appointments ordered by id
+    List<Appointment> getArchivedPatientAppointments(String patient) throws SQLException;
+
+    List<Appointment> getArchivedCaregiverAppointments(String caregiver) throws SQLException;
+
+    // Bulk import: each call inserts its rows as one batch and returns, per row in iteration order,
+    // whether it was inserted. Rows whose key already exists, or that refer to a caregiver, patient or
+    // vaccine that does not, are skipped rather than failing the batch.
+    boolean[] importPatients(Map<String, Credentials> accounts) throws SQLException;
+
+    boolean[] importCaregivers(Map<String, Credentials> accounts) throws SQLException;
+
+    boolean[] importVaccines(Map<String, Integer> vaccines) throws SQLException;
+
+    boolean[] importAvailabilities(List<Slot> slots) throws SQLException;
+
+    // appointments keep their ids; later reservations are given ids above them
+    boolean[] importAppointments(List<Appointment> appointments) throws SQLException;
+}
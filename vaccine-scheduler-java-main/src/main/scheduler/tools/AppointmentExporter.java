@@ -0,0 +1,192 @@
+package scheduler.tools;
+
+import scheduler.model.Appointment;
+import scheduler.storage.Storage;
+import scheduler.storage.StorageEngine;
+import scheduler.util.Config;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Date;
+import java.sql.SQLException;
+
+/**
+ * Writes every appointment in a date range, current and archived, to a file.
+ *
+ * Rows are streamed from the store and encoded straight into one direct buffer of ExportBufferSize
+ * bytes, which is written to the file's channel whenever the next row does not fit, so memory use
+ * does not depend on how many rows are exported.
+ *
+ * Formats:
+ *   csv:     id,date,caregiver,vaccine,patient with a header line, the format CsvImporter reads
+ *   binary:  the bytes "APPT" and a format version byte (1), then per appointment its id as an
+ *            int, its date as an int day count since 1970-01-01, and the caregiver, vaccine and
+ *            patient names, each as an unsigned short byte length followed by that many UTF-8
+ *            bytes; all numbers are big-endian
+ *
+ * Usage: AppointmentExporter [--storage jdbc|memory] <from> <to> <csv|binary> <file>
+ */
+public class AppointmentExporter {
+
+    public enum Format { CSV, BINARY }
+
+    private static final byte[] MAGIC = "APPT".getBytes(StandardCharsets.US_ASCII);
+    private static final byte VERSION = 1;
+    private static final byte[] CSV_HEADER = "id,date,caregiver,vaccine,patient\n".getBytes(StandardCharsets.UTF_8);
+
+    private final StorageEngine store;
+    private final int bufferSize;
+
+    public AppointmentExporter(StorageEngine store, int bufferSize) {
+        this.store = store;
+        // a buffer always holds at least one whole row
+        this.bufferSize = Math.max(bufferSize, 8192);
+    }
+
+    public AppointmentExporter(StorageEngine store) {
+        this(store, Config.getInt("ExportBufferSize", 1 << 16));
+    }
+
+    public static void main(String[] args) {
+        int i = 0;
+        if (args.length == 6 && args[0].equals("--storage")) {
+            Storage.set(Storage.create(args[1]));
+            i = 2;
+        }
+        if (args.length - i != 4) {
+            System.out.println("Usage: AppointmentExporter [--storage jdbc|memory] <from> <to> <csv|binary> <file>");
+            return;
+        }
+        try {
+            Result result = new AppointmentExporter(Storage.get()).export(Date.valueOf(args[i]),
+                    Date.valueOf(args[i + 1]), Format.valueOf(args[i + 2].toUpperCase()), Paths.get(args[i + 3]));
+            System.out.println(result);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Please enter valid dates and a format of csv or binary");
+        } catch (IOException e) {
+            System.out.println("Could not write " + args[i + 3]);
+            e.printStackTrace();
+        } catch (SQLException e) {
+            System.out.println("Export failed");
+            e.printStackTrace();
+        }
+    }
+
+    public Result export(Date from, Date to, Format format, Path file) throws IOException, SQLException {
+        Result result = new Result(file);
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+            if (format == Format.CSV) {
+                buffer.put(CSV_HEADER);
+            } else {
+                buffer.put(MAGIC).put(VERSION);
+            }
+            try {
+                store.forEachAppointment(from, to, appointment -> {
+                    try {
+                        if (format == Format.CSV) {
+                            writeCsv(channel, buffer, appointment);
+                        } else {
+                            writeBinary(channel, buffer, appointment);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    result.rows++;
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            drain(channel, buffer);
+            result.bytes = channel.position();
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static void writeCsv(FileChannel channel, ByteBuffer buffer, Appointment appointment) throws IOException {
+        byte[] line = (appointment.getId() + "," + appointment.getTime() + "," + csvField(appointment.getCaregiverName())
+                + "," + csvField(appointment.getVaccineName()) + "," + csvField(appointment.getPatientName()) + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+        reserve(channel, buffer, line.length);
+        buffer.put(line);
+    }
+
+    // quoted only when needed, with quotes doubled, as CsvImporter.splitCsv expects
+    private static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private static void writeBinary(FileChannel channel, ByteBuffer buffer, Appointment appointment) throws IOException {
+        byte[] caregiver = appointment.getCaregiverName().getBytes(StandardCharsets.UTF_8);
+        byte[] vaccine = appointment.getVaccineName().getBytes(StandardCharsets.UTF_8);
+        byte[] patient = appointment.getPatientName().getBytes(StandardCharsets.UTF_8);
+        reserve(channel, buffer, 4 + 4 + 2 + caregiver.length + 2 + vaccine.length + 2 + patient.length);
+        buffer.putInt(appointment.getId());
+        buffer.putInt((int) appointment.getTime().toLocalDate().toEpochDay());
+        putString(buffer, caregiver);
+        putString(buffer, vaccine);
+        putString(buffer, patient);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    // makes room for the next row by writing out what the buffer holds
+    private static void reserve(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            drain(channel, buffer);
+        }
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    public static class Result {
+        private final Path file;
+        private long rows = 0;
+        private long bytes = 0;
+        private long elapsedNanos = 0;
+
+        Result(Path file) {
+            this.file = file;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public double getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rows / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return "Exported " + rows + " appointments to " + file + " (" + bytes + " bytes) in "
+                    + String.format("%.2f", elapsedNanos / 1e9) + "s, "
+                    + String.format("%.0f", getRowsPerSecond()) + " rows/sec";
+        }
+    }
+}
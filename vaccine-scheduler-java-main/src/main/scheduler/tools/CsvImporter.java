@@ -0,0 +1,448 @@
+package scheduler.tools;
+
+import scheduler.model.Appointment;
+import scheduler.storage.Credentials;
+import scheduler.storage.Slot;
+import scheduler.storage.Storage;
+import scheduler.storage.StorageEngine;
+import scheduler.util.Config;
+import scheduler.util.Util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads CSV files into the tables from create.sql.
+ *
+ * The file is read one chunk of ImportBatchSize rows at a time. Parsing, and hashing the passwords
+ * of patients and caregivers, runs on ImportThreads workers while the previous chunk is being
+ * inserted; each chunk is inserted as one batch. Rows that already exist or refer to a missing
+ * caregiver, patient or vaccine are skipped; a chunk that the store rejects outright is retried row
+ * by row so the error can be pinned on the row that caused it. Every skipped or failed row is
+ * reported with its line number.
+ *
+ * Columns, with an optional header line:
+ *   patients, caregivers:  username,password
+ *   vaccines:              name,doses
+ *   availabilities:        date,caregiver
+ *   appointments:          id,date,caregiver,vaccine,patient
+ *
+ * Usage: CsvImporter [--storage jdbc|memory] <table> <file> [<table> <file> ...]
+ */
+public class CsvImporter {
+
+    private final StorageEngine store;
+    private final int batchSize;
+    private final ExecutorService workers;
+    private final PrintStream out;
+
+    public CsvImporter(StorageEngine store, int batchSize, int threads, PrintStream out) {
+        this.store = store;
+        this.batchSize = batchSize;
+        this.out = out;
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "import-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public CsvImporter(StorageEngine store, PrintStream out) {
+        this(store, Config.getInt("ImportBatchSize", 1000),
+                Config.getInt("ImportThreads", Runtime.getRuntime().availableProcessors()), out);
+    }
+
+    public static void main(String[] args) {
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--storage") && i + 1 < args.length) {
+                Storage.set(Storage.create(args[++i]));
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.isEmpty() || files.size() % 2 != 0) {
+            System.out.println("Usage: CsvImporter [--storage jdbc|memory] <table> <file> [<table> <file> ...]");
+            return;
+        }
+        CsvImporter importer = new CsvImporter(Storage.get(), System.out);
+        try {
+            // tables are loaded in the order given, so list referenced tables first
+            for (int i = 0; i < files.size(); i += 2) {
+                importer.importFile(files.get(i), Paths.get(files.get(i + 1)));
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        } catch (IOException e) {
+            System.out.println("Could not read " + e.getMessage());
+        } catch (SQLException e) {
+            System.out.println("Import failed");
+            e.printStackTrace();
+        } finally {
+            importer.shutdown();
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    public Result importFile(String tableName, Path file) throws IOException, SQLException {
+        Table<?> table = Table.forName(tableName);
+        if (table == null) {
+            throw new IllegalArgumentException("Unknown table " + tableName
+                    + ", expected patients, caregivers, vaccines, availabilities or appointments");
+        }
+        return importFile(table, file);
+    }
+
+    private <T> Result importFile(Table<T> table, Path file) throws IOException, SQLException {
+        Result result = new Result(table.name);
+        long start = System.nanoTime();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            int lineNumber = 0;
+            List<Row<T>> pending = null;
+            List<Row<T>> rows = new ArrayList<>(batchSize);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || (lineNumber == 1 && table.isHeader(line))) {
+                    continue;
+                }
+                rows.add(parseLater(table, line, lineNumber));
+                if (rows.size() >= batchSize) {
+                    // the next chunk is parsed and hashed while this one is inserted
+                    if (pending != null) {
+                        insert(table, pending, result);
+                    }
+                    pending = rows;
+                    rows = new ArrayList<>(batchSize);
+                }
+            }
+            if (pending != null) {
+                insert(table, pending, result);
+            }
+            if (!rows.isEmpty()) {
+                insert(table, rows, result);
+            }
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        out.println(result);
+        return result;
+    }
+
+    private <T> Row<T> parseLater(Table<T> table, String line, int lineNumber) {
+        return new Row<>(lineNumber, workers.submit(() -> table.parse(splitCsv(line))));
+    }
+
+    private <T> void insert(Table<T> table, List<Row<T>> rows, Result result) throws SQLException {
+        List<T> values = new ArrayList<>(rows.size());
+        List<Row<T>> parsed = new ArrayList<>(rows.size());
+        for (Row<T> row : rows) {
+            result.rows++;
+            try {
+                values.add(row.value.get());
+                parsed.add(row);
+            } catch (ExecutionException e) {
+                String message = e.getCause().getMessage();
+                fail(result, row, message == null ? "invalid value" : message);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Import interrupted", e);
+            }
+        }
+        if (values.isEmpty()) {
+            return;
+        }
+
+        boolean[] inserted;
+        try {
+            inserted = table.insert(store, values);
+        } catch (SQLException e) {
+            // one bad row fails the whole batch; find it by inserting the rows one at a time
+            inserted = new boolean[values.size()];
+            for (int i = 0; i < values.size(); i++) {
+                try {
+                    inserted[i] = table.insert(store, Collections.singletonList(values.get(i)))[0];
+                } catch (SQLException rowError) {
+                    fail(result, parsed.get(i), rowError.getMessage());
+                    continue;
+                }
+                if (!inserted[i]) {
+                    skip(result, table, parsed.get(i));
+                } else {
+                    result.imported++;
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < inserted.length; i++) {
+            if (inserted[i]) {
+                result.imported++;
+            } else {
+                skip(result, table, parsed.get(i));
+            }
+        }
+    }
+
+    private void skip(Result result, Table<?> table, Row<?> row) {
+        result.skipped++;
+        out.println(table.name + " line " + row.lineNumber + ": skipped, " + table.skipReason);
+    }
+
+    private void fail(Result result, Row<?> row, String message) {
+        result.failed++;
+        out.println(result.table + " line " + row.lineNumber + ": failed, " + message);
+    }
+
+    // splits one line on commas; fields may be quoted with ", and "" inside quotes is a literal "
+    static String[] splitCsv(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+        return fields.toArray(new String[0]);
+    }
+
+    public static class Result {
+        private final String table;
+        private int rows = 0;
+        private int imported = 0;
+        private int skipped = 0;
+        private int failed = 0;
+        private long elapsedNanos = 0;
+
+        Result(String table) {
+            this.table = table;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        public int getImported() {
+            return imported;
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public double getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rows / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return "Imported " + imported + " of " + rows + " rows into " + table
+                    + " (" + skipped + " skipped, " + failed + " failed) in "
+                    + String.format("%.2f", elapsedNanos / 1e9) + "s, "
+                    + String.format("%.0f", getRowsPerSecond()) + " rows/sec";
+        }
+    }
+
+    private static class Row<T> {
+        private final int lineNumber;
+        private final Future<T> value;
+
+        Row(int lineNumber, Future<T> value) {
+            this.lineNumber = lineNumber;
+            this.value = value;
+        }
+    }
+
+    // how one table's rows are parsed and inserted
+    private abstract static class Table<T> {
+        private final String name;
+        private final String[] columns;
+        private final String skipReason;
+
+        Table(String name, String skipReason, String... columns) {
+            this.name = name;
+            this.skipReason = skipReason;
+            this.columns = columns;
+        }
+
+        static Table<?> forName(String name) {
+            switch (name.toLowerCase()) {
+                case "patients":
+                    return new AccountTable("patients") {
+                        @Override
+                        boolean[] insertAccounts(StorageEngine store, Map<String, Credentials> accounts)
+                                throws SQLException {
+                            return store.importPatients(accounts);
+                        }
+                    };
+                case "caregivers":
+                    return new AccountTable("caregivers") {
+                        @Override
+                        boolean[] insertAccounts(StorageEngine store, Map<String, Credentials> accounts)
+                                throws SQLException {
+                            return store.importCaregivers(accounts);
+                        }
+                    };
+                case "vaccines":
+                    return new VaccineTable();
+                case "availabilities":
+                    return new AvailabilityTable();
+                case "appointments":
+                    return new AppointmentTable();
+                default:
+                    return null;
+            }
+        }
+
+        boolean isHeader(String line) {
+            return splitCsv(line)[0].equalsIgnoreCase(columns[0]);
+        }
+
+        T parse(String[] fields) {
+            if (fields.length != columns.length) {
+                throw new IllegalArgumentException("expected " + String.join(",", columns));
+            }
+            return parseFields(fields);
+        }
+
+        abstract T parseFields(String[] fields);
+
+        abstract boolean[] insert(StorageEngine store, List<T> rows) throws SQLException;
+    }
+
+    private abstract static class AccountTable extends Table<Map.Entry<String, Credentials>> {
+        AccountTable(String name) {
+            super(name, "username already exists", "username", "password");
+        }
+
+        @Override
+        Map.Entry<String, Credentials> parseFields(String[] fields) {
+            byte[] salt = Util.generateSalt();
+            byte[] hash = Util.generateHash(fields[1], salt);
+            return Map.entry(fields[0], new Credentials(salt, hash));
+        }
+
+        @Override
+        boolean[] insert(StorageEngine store, List<Map.Entry<String, Credentials>> rows) throws SQLException {
+            // a username repeated within the batch is reported as already existing
+            Map<String, Credentials> accounts = new LinkedHashMap<>();
+            int[] index = new int[rows.size()];
+            for (int i = 0; i < rows.size(); i++) {
+                index[i] = accounts.containsKey(rows.get(i).getKey()) ? -1 : accounts.size();
+                accounts.putIfAbsent(rows.get(i).getKey(), rows.get(i).getValue());
+            }
+            return spread(insertAccounts(store, accounts), index);
+        }
+
+        abstract boolean[] insertAccounts(StorageEngine store, Map<String, Credentials> accounts) throws SQLException;
+    }
+
+    // maps the results for the distinct keys back onto the rows; index[i] is -1 for a repeated key
+    private static boolean[] spread(boolean[] inserted, int[] index) {
+        boolean[] result = new boolean[index.length];
+        for (int i = 0; i < index.length; i++) {
+            result[i] = index[i] >= 0 && inserted[index[i]];
+        }
+        return result;
+    }
+
+    private static class VaccineTable extends Table<Map.Entry<String, Integer>> {
+        VaccineTable() {
+            super("vaccines", "vaccine already exists", "name", "doses");
+        }
+
+        @Override
+        Map.Entry<String, Integer> parseFields(String[] fields) {
+            int doses = Integer.parseInt(fields[1]);
+            if (doses < 0) {
+                throw new IllegalArgumentException("doses cannot be negative");
+            }
+            return Map.entry(fields[0], doses);
+        }
+
+        @Override
+        boolean[] insert(StorageEngine store, List<Map.Entry<String, Integer>> rows) throws SQLException {
+            Map<String, Integer> vaccines = new LinkedHashMap<>();
+            int[] index = new int[rows.size()];
+            for (int i = 0; i < rows.size(); i++) {
+                index[i] = vaccines.containsKey(rows.get(i).getKey()) ? -1 : vaccines.size();
+                vaccines.putIfAbsent(rows.get(i).getKey(), rows.get(i).getValue());
+            }
+            return spread(store.importVaccines(vaccines), index);
+        }
+    }
+
+    private static class AvailabilityTable extends Table<Slot> {
+        AvailabilityTable() {
+            super("availabilities", "already available or unknown caregiver", "date", "caregiver");
+        }
+
+        @Override
+        Slot parseFields(String[] fields) {
+            return new Slot(Date.valueOf(fields[0]), fields[1]);
+        }
+
+        @Override
+        boolean[] insert(StorageEngine store, List<Slot> rows) throws SQLException {
+            return store.importAvailabilities(rows);
+        }
+    }
+
+    private static class AppointmentTable extends Table<Appointment> {
+        AppointmentTable() {
+            super("appointments", "id already exists or unknown caregiver, vaccine or patient",
+                    "id", "date", "caregiver", "vaccine", "patient");
+        }
+
+        @Override
+        Appointment parseFields(String[] fields) {
+            return new Appointment.AppointmentBuilder(Integer.parseInt(fields[0]), Date.valueOf(fields[1]),
+                    fields[2], fields[3], fields[4]).build();
+        }
+
+        @Override
+        boolean[] insert(StorageEngine store, List<Appointment> rows) throws SQLException {
+            return store.importAppointments(rows);
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package scheduler.tools;
+
+import scheduler.Scheduler;
+import scheduler.Session;
+import scheduler.metrics.Histogram;
+import scheduler.metrics.Metrics;
+import scheduler.metrics.OperationStats;
+import scheduler.model.Appointment;
+import scheduler.storage.Storage;
+import scheduler.storage.StorageEngine;
+import scheduler.util.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives the command layer with a synthetic population and checks the store is still consistent
+ * afterwards.
+ *
+ * LoadCaregivers caregivers each start with availability on a few random days of the week over the
+ * next LoadDays days, then keep adding single dates. LoadPatients patients run concurrently, each
+ * on its own session: search a date, reserve it, and with probability LoadCancelRate later cancel
+ * and try again; a patient who keeps their appointment is replaced by a newly signed-up one, so
+ * the mix of commands stays the same for the whole run. LoadHotShare of the dates patients pick
+ * fall on LoadHotDates popular dates. Between commands every user waits a random think time
+ * averaging LoadThinkMillis (LoadCaregiverThinkMillis for caregivers).
+ *
+ * Every account and the vaccine are named after the run, so a run against a shared database only
+ * ever checks its own data. The report has throughput, latency percentiles and database round
+ * trips per command, what the commands answered, and these invariants: no caregiver booked twice
+ * on a date, no booked slot still listed as available, no negative dose count, and doses plus
+ * appointments for the run's vaccine adding up to what was added. The exit status is 1 if any of
+ * them is broken, so a run can serve as a pass/fail check.
+ *
+ * Usage: LoadTest [--storage jdbc|memory] [<seconds>]   (default memory, LoadSeconds seconds)
+ */
+public class LoadTest {
+
+    private static final String PASSWORD = "correct-horse";
+    private static final String BOOKED = "Appointment ID ";
+    private static final int MAX_EXAMPLES = 5;
+
+    private final StorageEngine store;
+    private final PrintStream out;
+    private final int caregivers;
+    private final int patients;
+    private final int days;
+    private final long thinkMillis;
+    private final long caregiverThinkMillis;
+    private final double cancelRate;
+    private final double hotShare;
+    private final int doses;
+
+    // names are unique to the run
+    private final String run = Long.toString(System.currentTimeMillis(), 36);
+    private final String vaccine = "load" + run;
+    private final LocalDate firstDate = LocalDate.now().plusDays(1);
+    private final int[] hotDates;
+
+    private final Map<String, Operation> operations = new LinkedHashMap<>();
+    private final AtomicInteger signups = new AtomicInteger();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    public LoadTest(StorageEngine store, PrintStream out) {
+        this.store = store;
+        this.out = out;
+        this.caregivers = Config.getInt("LoadCaregivers", 10);
+        this.patients = Config.getInt("LoadPatients", 100);
+        this.days = Config.getInt("LoadDays", 30);
+        this.thinkMillis = Config.getLong("LoadThinkMillis", 20);
+        this.caregiverThinkMillis = Config.getLong("LoadCaregiverThinkMillis", 200);
+        this.cancelRate = Double.parseDouble(Config.get("LoadCancelRate", "0.2"));
+        this.hotShare = Double.parseDouble(Config.get("LoadHotShare", "0.5"));
+        this.doses = Config.getInt("LoadDoses", 1000000);
+        this.hotDates = new int[Math.min(Config.getInt("LoadHotDates", 3), days)];
+        for (int i = 0; i < hotDates.length; i++) {
+            hotDates[i] = ThreadLocalRandom.current().nextInt(days);
+        }
+        for (String command : new String[]{"search_caregiver_schedule", "reserve", "cancel", "upload_availability",
+                "create_patient", "login_patient"}) {
+            operations.put(command, new Operation(command));
+        }
+    }
+
+    public static void main(String[] args) {
+        int i = 0;
+        if (args.length >= 2 && args[0].equals("--storage")) {
+            Storage.set(Storage.create(args[1]));
+            i = 2;
+        } else {
+            // a local stand-in unless a database is asked for
+            Storage.set(Storage.create("memory"));
+        }
+        if (args.length - i > 1) {
+            System.out.println("Usage: LoadTest [--storage jdbc|memory] [<seconds>]");
+            return;
+        }
+        try {
+            int seconds = args.length > i ? Integer.parseInt(args[i]) : Config.getInt("LoadSeconds", 30);
+            int violations = new LoadTest(Storage.get(), System.out).run(seconds);
+            if (violations > 0) {
+                System.exit(1);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Please enter a valid number of seconds");
+        } catch (IllegalStateException e) {
+            System.out.println(e.getMessage());
+        } catch (SQLException e) {
+            System.out.println("Load test failed");
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // returns the number of invariant violations found
+    public int run(int seconds) throws SQLException, InterruptedException {
+        out.println("Setting up " + caregivers + " caregivers and " + patients + " patients");
+        setup();
+        Map<String, long[]> before = commandTotals();
+        int[] baseline = doseTotals();
+
+        ExecutorService users = Executors.newFixedThreadPool(caregivers + patients, r -> {
+            Thread t = new Thread(r, "load-user");
+            t.setDaemon(true);
+            return t;
+        });
+        long start = System.nanoTime();
+        for (int c = 0; c < caregivers; c++) {
+            String caregiver = caregiverName(c);
+            users.execute(() -> caregiver(caregiver));
+        }
+        for (int p = 0; p < patients; p++) {
+            String patient = patientName(p);
+            users.execute(() -> patient(patient));
+        }
+        out.println("Running for " + seconds + "s");
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        stopped.countDown();
+        users.shutdown();
+        users.awaitTermination(1, TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - start;
+        // let the waitlist finish bookings it already started
+        Thread.sleep(Config.getLong("LoadSettleMillis", 500));
+
+        report(elapsed, before);
+        return checkInvariants(baseline);
+    }
+
+    // Setup
+    private void setup() {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Session session = new Session(new PrintStream(buffer, true, StandardCharsets.UTF_8));
+        LocalDate lastDate = firstDate.plusDays(days - 1);
+        for (int c = 0; c < caregivers; c++) {
+            expect(session, buffer, "create_caregiver " + caregiverName(c) + " " + PASSWORD, "Created user");
+            expect(session, buffer, "login_caregiver " + caregiverName(c) + " " + PASSWORD, "Logged in");
+            if (c == 0) {
+                expect(session, buffer, "add_doses " + vaccine + " " + doses, "Doses updated");
+            }
+            expect(session, buffer, "upload_availability " + firstDate + " " + lastDate + " " + randomDays(), "Availability uploaded");
+            expect(session, buffer, "logout", "logged out");
+        }
+        for (int p = 0; p < patients; p++) {
+            expect(session, buffer, "create_patient " + patientName(p) + " " + PASSWORD, "Created user");
+        }
+    }
+
+    private static void expect(Session session, ByteArrayOutputStream buffer, String line, String answer) {
+        String output = execute(session, line, buffer);
+        if (!output.contains(answer)) {
+            throw new IllegalStateException("Setup failed at \"" + line + "\": " + output.trim());
+        }
+    }
+
+    // two to four days of the week, e.g. MON,THU,SAT
+    private static String randomDays() {
+        List<DayOfWeek> all = new ArrayList<>(List.of(DayOfWeek.values()));
+        Collections.shuffle(all);
+        StringBuilder days = new StringBuilder();
+        for (DayOfWeek day : all.subList(0, 2 + ThreadLocalRandom.current().nextInt(3))) {
+            days.append(days.length() == 0 ? "" : ",").append(day.name(), 0, 3);
+        }
+        return days.toString();
+    }
+
+    // Users
+    private void caregiver(String username) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Session session = new Session(new PrintStream(buffer, true, StandardCharsets.UTF_8));
+        execute(session, "login_caregiver " + username + " " + PASSWORD, buffer);
+        while (think(caregiverThinkMillis)) {
+            LocalDate date = firstDate.plusDays(ThreadLocalRandom.current().nextInt(days));
+            // the range form skips dates that are already available or booked instead of failing
+            String output = timed("upload_availability", session, "upload_availability " + date + " " + date + " daily", buffer);
+            outcome("upload_availability", output.contains("for 0 new") ? "available or booked"
+                    : output.contains("uploaded") ? "added" : "other");
+        }
+    }
+
+    private void patient(String username) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Session session = new Session(new PrintStream(buffer, true, StandardCharsets.UTF_8));
+        execute(session, "login_patient " + username + " " + PASSWORD, buffer);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (think(thinkMillis)) {
+            LocalDate date = pickDate();
+            String output = timed("search_caregiver_schedule", session, "search_caregiver_schedule " + date, buffer);
+            outcome("search_caregiver_schedule", output.contains("No caregivers available") ? "none available" : "found");
+            if (!think(thinkMillis)) {
+                return;
+            }
+            output = timed("reserve", session, "reserve " + date + " " + vaccine, buffer);
+            int id = bookedId(output);
+            if (id < 0) {
+                outcome("reserve", output.contains("No caregiver") ? "no caregiver"
+                        : output.contains("doses") ? "no doses" : "other");
+                continue;
+            }
+            outcome("reserve", "booked");
+            if (random.nextDouble() < cancelRate) {
+                if (!think(thinkMillis)) {
+                    return;
+                }
+                output = timed("cancel", session, "cancel " + id, buffer);
+                outcome("cancel", output.contains("successfully canceled") ? "canceled" : "other");
+                continue;
+            }
+            // this patient is done; a new one signs up in their place
+            if (!think(thinkMillis)) {
+                return;
+            }
+            execute(session, "logout", buffer);
+            username = patientName(patients + signups.getAndIncrement());
+            output = timed("create_patient", session, "create_patient " + username + " " + PASSWORD, buffer);
+            outcome("create_patient", output.contains("Created user") ? "created" : "other");
+            output = timed("login_patient", session, "login_patient " + username + " " + PASSWORD, buffer);
+            outcome("login_patient", output.contains("Logged in") ? "logged in" : "other");
+        }
+    }
+
+    private LocalDate pickDate() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (hotDates.length > 0 && random.nextDouble() < hotShare) {
+            return firstDate.plusDays(hotDates[random.nextInt(hotDates.length)]);
+        }
+        return firstDate.plusDays(random.nextInt(days));
+    }
+
+    // waits an exponentially distributed time with the given mean; false once the run is over
+    private boolean think(long meanMillis) {
+        long millis = (long) (-meanMillis * Math.log(1 - ThreadLocalRandom.current().nextDouble()));
+        try {
+            return !stopped.await(millis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private String timed(String command, Session session, String line, ByteArrayOutputStream buffer) {
+        long start = System.nanoTime();
+        String output = execute(session, line, buffer);
+        operations.get(command).latency.record(System.nanoTime() - start);
+        return output;
+    }
+
+    private void outcome(String command, String outcome) {
+        operations.get(command).outcomes.computeIfAbsent(outcome, o -> new LongAdder()).increment();
+    }
+
+    // what the command printed; the waitlist may also write to the session from another thread
+    private static String execute(Session session, String line, ByteArrayOutputStream buffer) {
+        buffer.reset();
+        Scheduler.execute(session, line);
+        return buffer.toString(StandardCharsets.UTF_8);
+    }
+
+    private static int bookedId(String output) {
+        int start = output.indexOf(BOOKED);
+        if (start < 0) {
+            return -1;
+        }
+        start += BOOKED.length();
+        int end = start;
+        while (end < output.length() && Character.isDigit(output.charAt(end))) {
+            end++;
+        }
+        return end == start ? -1 : Integer.parseInt(output.substring(start, end));
+    }
+
+    private String caregiverName(int i) {
+        return "load" + run + "c" + i;
+    }
+
+    private String patientName(int i) {
+        return "load" + run + "p" + i;
+    }
+
+    // Report
+    // {count, round trips} per command so far, to take the setup out of the report
+    private static Map<String, long[]> commandTotals() {
+        Map<String, long[]> totals = new HashMap<>();
+        for (OperationStats stats : Metrics.get().getCommands().values()) {
+            totals.put(stats.getName(), new long[]{stats.getCount(), stats.getRoundTrips()});
+        }
+        return totals;
+    }
+
+    private void report(long elapsedNanos, Map<String, long[]> before) {
+        double seconds = elapsedNanos / 1e9;
+        Map<String, long[]> after = commandTotals();
+        long total = 0;
+        out.println(String.format("%-26s %8s %9s %9s %9s %9s %9s %7s",
+                "", "count", "per sec", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "trips"));
+        for (Operation operation : operations.values()) {
+            Histogram latency = operation.latency;
+            long[] b = before.getOrDefault(operation.command, new long[2]);
+            long[] a = after.getOrDefault(operation.command, new long[2]);
+            long calls = a[0] - b[0];
+            total += latency.getCount();
+            out.println(String.format("%-26s %8d %9.1f %9.3f %9.3f %9.3f %9.3f %7.1f", operation.command,
+                    latency.getCount(), latency.getCount() / seconds, latency.getValueAtPercentile(50) / 1e6,
+                    latency.getValueAtPercentile(99) / 1e6, latency.getValueAtPercentile(99.9) / 1e6,
+                    latency.getMax() / 1e6, calls == 0 ? 0 : (double) (a[1] - b[1]) / calls));
+        }
+        out.println(String.format("%-26s %8d %9.1f", "total", total, total / seconds));
+        for (Operation operation : operations.values()) {
+            if (!operation.outcomes.isEmpty()) {
+                StringBuilder line = new StringBuilder(operation.command).append(':');
+                operation.outcomes.forEach((outcome, count) -> line.append(' ').append(outcome).append('=').append(count.sum()));
+                out.println(line);
+            }
+        }
+    }
+
+    // Invariants
+    // {doses left, appointments} for the run's vaccine
+    private int[] doseTotals() throws SQLException {
+        Integer left = store.getDoses(vaccine);
+        int[] appointments = new int[1];
+        store.forEachAppointment(Date.valueOf(firstDate), Date.valueOf(firstDate.plusDays(days)), appointment -> {
+            if (appointment.getVaccineName().equals(vaccine)) {
+                appointments[0]++;
+            }
+        });
+        return new int[]{left == null ? 0 : left, appointments[0]};
+    }
+
+    private int checkInvariants(int[] baseline) throws SQLException {
+        Date from = Date.valueOf(firstDate);
+        Date to = Date.valueOf(firstDate.plusDays(days));
+        String prefix = "load" + run;
+
+        Set<String> booked = new HashSet<>();
+        List<String> doubleBooked = new ArrayList<>();
+        List<Appointment> appointments = new ArrayList<>();
+        store.forEachAppointment(from, to, appointments::add);
+        for (Appointment appointment : appointments) {
+            String slot = appointment.getCaregiverName() + " on " + appointment.getTime();
+            if (appointment.getCaregiverName().startsWith(prefix) && !booked.add(slot)) {
+                doubleBooked.add(slot);
+            }
+        }
+        List<String> stillAvailable = new ArrayList<>();
+        store.forEachAvailability(from, to, slot -> {
+            String key = slot.getCaregiver() + " on " + slot.getTime();
+            if (booked.contains(key)) {
+                stillAvailable.add(key);
+            }
+        });
+        List<String> negative = new ArrayList<>();
+        for (Map.Entry<String, Integer> vaccine : store.getVaccines().entrySet()) {
+            if (vaccine.getValue() < 0) {
+                negative.add(vaccine.getKey() + " has " + vaccine.getValue());
+            }
+        }
+        int[] now = doseTotals();
+        int drift = (now[0] + now[1]) - (baseline[0] + baseline[1]);
+        List<String> dosesLost = new ArrayList<>();
+        if (drift != 0) {
+            dosesLost.add(now[0] + " doses left and " + now[1] + " appointments, expected " + (baseline[0] + baseline[1]) + " in total");
+        }
+
+        Map<String, List<String>> violations = new LinkedHashMap<>();
+        violations.put("double bookings", doubleBooked);
+        violations.put("booked slots still available", stillAvailable);
+        violations.put("negative dose counts", negative);
+        violations.put("doses not accounted for", dosesLost);
+        int count = 0;
+        out.println("Checked " + appointments.size() + " appointments");
+        for (Map.Entry<String, List<String>> violation : violations.entrySet()) {
+            List<String> examples = violation.getValue();
+            out.println(violation.getKey() + ": " + examples.size());
+            for (String example : examples.subList(0, Math.min(MAX_EXAMPLES, examples.size()))) {
+                out.println("  " + example);
+            }
+            count += examples.size();
+        }
+        return count;
+    }
+
+    private static class Operation {
+        private final String command;
+        private final Histogram latency = new Histogram();
+        private final Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+
+        Operation(String command) {
+            this.command = command;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package scheduler.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs password hashing on a pool of HashThreads workers (one per core by default) instead of the
+ * thread that handles the command.
+ *
+ * Logins and account creations arriving together are hashed in parallel, while the pool keeps
+ * hashing from taking more cores than it is given. At most HashQueueSize requests wait for a
+ * worker; past that the caller hashes on its own thread, which slows down whoever is producing the
+ * burst rather than queueing without bound.
+ */
+public class HashingService {
+
+    private static final HashingService INSTANCE = new HashingService(
+            Config.getInt("HashThreads", Runtime.getRuntime().availableProcessors()),
+            Config.getInt("HashQueueSize", 1000));
+
+    private final ThreadPoolExecutor workers;
+
+    HashingService(int threads, int queueSize) {
+        AtomicInteger count = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+                    Thread t = new Thread(r, "hashing-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    public static HashingService get() {
+        return INSTANCE;
+    }
+
+    public CompletableFuture<byte[]> hashAsync(String password, byte[] salt) {
+        return CompletableFuture.supplyAsync(() -> Util.generateHash(password, salt), workers);
+    }
+
+    // completes with whether the password hashes to the stored hash
+    public CompletableFuture<Boolean> verifyAsync(String password, byte[] salt, byte[] storedHash) {
+        return hashAsync(password, salt).thenApply(hash -> matches(storedHash, hash));
+    }
+
+    public byte[] hash(String password, byte[] salt) {
+        return join(hashAsync(password, salt));
+    }
+
+    public boolean verify(String password, byte[] salt, byte[] storedHash) {
+        return join(verifyAsync(password, salt, storedHash));
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // Compares in time that depends only on the lengths, not on where the hashes differ. Hashes are
+    // stored in a fixed-width BINARY column and come back padded with zero bytes, so missing bytes
+    // on either side count as zero instead of being trimmed off first.
+    public static boolean matches(byte[] storedHash, byte[] hash) {
+        int length = Math.max(storedHash.length, hash.length);
+        int diff = 0;
+        for (int i = 0; i < length; i++) {
+            byte a = i < storedHash.length ? storedHash[i] : 0;
+            byte b = i < hash.length ? hash[i] : 0;
+            diff |= a ^ b;
+        }
+        return diff == 0;
+    }
+}
@@ -14,11 +14,21 @@ public class Util {
     private static final int HASH_STRENGTH = 10;
     private static final int KEY_LENGTH = 16;
 
+    // looking up the factory is far slower than using it, and a factory is not safe to share
+    // between threads, so each thread keeps its own
+    private static final ThreadLocal<SecretKeyFactory> FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     public static byte[] generateSalt() {
         // Generate a random cryptographic salt
-        SecureRandom random = new SecureRandom();
         byte[] salt = new byte[16];
-        random.nextBytes(salt);
+        RANDOM.nextBytes(salt);
         return salt;
     }
 
@@ -27,12 +37,10 @@ public class Util {
         KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
 
         // Generate the hash
-        SecretKeyFactory factory = null;
         byte[] hash = null;
         try {
-            factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-            hash = factory.generateSecret(spec).getEncoded();
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
+            hash = FACTORY.get().generateSecret(spec).getEncoded();
+        } catch (InvalidKeySpecException ex) {
             throw new IllegalStateException();
         }
         return hash;